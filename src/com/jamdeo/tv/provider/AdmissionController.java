@@ -0,0 +1,235 @@
+package com.jamdeo.tv.provider;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Decides when a provider call may run, so that one busy client cannot take
+ * every binder thread and the database away from the others. Calls are keyed
+ * by the calling UID. Each caller may only have a few calls running and one
+ * or so waiting, and only a few calls may wait over all callers, as a waiting
+ * call blocks a binder thread; anything beyond that, or anything that waits
+ * too long, is rejected. When a slot frees up, small calls go before bulk
+ * ones, and among those the caller with the fewest calls running goes first.
+ * A bulk call that has waited half of the maximum wait ranks as a small one,
+ * so that steady small traffic cannot starve it.
+ */
+public class AdmissionController {
+
+    /** A call that has been let in, to be handed back to {@link #release}. */
+    public static final class Ticket {
+        final int uid;
+        final boolean bulk;
+        final long seq;
+        final long enqueuedAt;
+
+        Ticket(int uid, boolean bulk, long seq, long enqueuedAt) {
+            this.uid = uid;
+            this.bulk = bulk;
+            this.seq = seq;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /** Counters for one calling UID. */
+    public static final class CallerStats {
+        int active;
+        int waiting;
+        public long admitted;
+        public long rejected;
+        // calls that had to wait for a slot
+        public long queued;
+        public long totalWaitMs;
+        public long maxWaitMs;
+
+        @Override
+        public String toString() {
+            return "admitted=" + admitted + " rejected=" + rejected + " queued=" + queued
+                + " avgWaitMs=" + (queued == 0 ? 0 : totalWaitMs / queued)
+                + " maxWaitMs=" + maxWaitMs + " active=" + active + " waiting=" + waiting;
+        }
+    }
+
+    private final int mMaxActive;
+    private final int mMaxActiveBulk;
+    private final int mMaxActivePerCaller;
+    private final int mMaxWaitingPerCaller;
+    private final int mMaxWaiting;
+    private final long mMaxWaitMs;
+
+    private final ArrayList<Ticket> mWaiting = new ArrayList<Ticket>();
+    private final SparseArray<CallerStats> mStats = new SparseArray<CallerStats>();
+    private int mActive;
+    private int mActiveBulk;
+    private long mNextSeq;
+
+    /**
+     * @param maxActive calls running at once, over all callers
+     * @param maxActiveBulk bulk calls running at once, over all callers
+     * @param maxActivePerCaller calls running at once for one caller
+     * @param maxWaitingPerCaller calls of one caller waiting for a slot
+     * @param maxWaiting calls waiting for a slot, over all callers
+     * @param maxWaitMs how long a call may wait before it is rejected
+     */
+    public AdmissionController(int maxActive, int maxActiveBulk, int maxActivePerCaller,
+            int maxWaitingPerCaller, int maxWaiting, long maxWaitMs) {
+        mMaxActive = maxActive;
+        mMaxActiveBulk = maxActiveBulk;
+        mMaxActivePerCaller = maxActivePerCaller;
+        mMaxWaitingPerCaller = maxWaitingPerCaller;
+        mMaxWaiting = maxWaiting;
+        mMaxWaitMs = maxWaitMs;
+    }
+
+    /**
+     * Waits until the call may run.
+     *
+     * @param bulk whether the call reads or writes the whole table
+     * @throws IllegalStateException if the caller has too many calls waiting or
+     *         the call waited too long. This exception is passed back over binder.
+     */
+    public synchronized Ticket acquire(int uid, boolean bulk) {
+        CallerStats stats = getStatsLocked(uid);
+        long now = SystemClock.uptimeMillis();
+        Ticket ticket = new Ticket(uid, bulk, mNextSeq++, now);
+
+        // runs at once if nothing waiting is ahead of it
+        mWaiting.add(ticket);
+        if (nextLocked() == ticket) {
+            mWaiting.remove(ticket);
+            admitLocked(ticket, stats);
+            return ticket;
+        }
+        if (stats.waiting >= mMaxWaitingPerCaller) {
+            mWaiting.remove(ticket);
+            stats.rejected++;
+            throw new IllegalStateException("Too many requests waiting for uid " + uid);
+        }
+        // the ticket itself is in mWaiting already
+        if (mWaiting.size() > mMaxWaiting) {
+            mWaiting.remove(ticket);
+            stats.rejected++;
+            throw new IllegalStateException("Too many requests waiting, rejecting uid " + uid);
+        }
+
+        stats.waiting++;
+        // a bulk call that has aged since it last looked may be next in line now
+        notifyAll();
+        long deadline = now + mMaxWaitMs;
+        try {
+            while (nextLocked() != ticket) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    stats.rejected++;
+                    throw new IllegalStateException("Timed out waiting for uid " + uid);
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    stats.rejected++;
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for uid " + uid);
+                }
+            }
+        } finally {
+            mWaiting.remove(ticket);
+            stats.waiting--;
+            // the next ticket in line may be runnable too
+            notifyAll();
+        }
+
+        long waitMs = SystemClock.uptimeMillis() - ticket.enqueuedAt;
+        stats.queued++;
+        stats.totalWaitMs += waitMs;
+        stats.maxWaitMs = Math.max(stats.maxWaitMs, waitMs);
+        admitLocked(ticket, stats);
+        return ticket;
+    }
+
+    public synchronized void release(Ticket ticket) {
+        CallerStats stats = getStatsLocked(ticket.uid);
+        stats.active--;
+        mActive--;
+        if (ticket.bulk) {
+            mActiveBulk--;
+        }
+        notifyAll();
+    }
+
+    private void admitLocked(Ticket ticket, CallerStats stats) {
+        stats.active++;
+        stats.admitted++;
+        mActive++;
+        if (ticket.bulk) {
+            mActiveBulk++;
+        }
+    }
+
+    private boolean canRunLocked(Ticket ticket) {
+        return mActive < mMaxActive
+            && (!ticket.bulk || mActiveBulk < mMaxActiveBulk)
+            && getStatsLocked(ticket.uid).active < mMaxActivePerCaller;
+    }
+
+    // Returns the waiting ticket that should run next, or null if none can run now.
+    private Ticket nextLocked() {
+        long agedBefore = SystemClock.uptimeMillis() - mMaxWaitMs / 2;
+        Ticket best = null;
+        boolean bestSmall = false;
+        int bestActive = 0;
+        for (int i = 0; i < mWaiting.size(); i++) {
+            Ticket ticket = mWaiting.get(i);
+            if (!canRunLocked(ticket)) {
+                continue;
+            }
+            boolean small = !ticket.bulk || ticket.enqueuedAt <= agedBefore;
+            int active = getStatsLocked(ticket.uid).active;
+            if (best == null
+                    || (!bestSmall && small)
+                    || (bestSmall == small && active < bestActive)
+                    || (bestSmall == small && active == bestActive
+                        && ticket.seq < best.seq)) {
+                best = ticket;
+                bestSmall = small;
+                bestActive = active;
+            }
+        }
+        return best;
+    }
+
+    private CallerStats getStatsLocked(int uid) {
+        CallerStats stats = mStats.get(uid);
+        if (stats == null) {
+            stats = new CallerStats();
+            mStats.put(uid, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return a copy of the counters for the given caller.
+     */
+    public synchronized CallerStats getStats(int uid) {
+        CallerStats stats = getStatsLocked(uid);
+        CallerStats copy = new CallerStats();
+        copy.active = stats.active;
+        copy.waiting = stats.waiting;
+        copy.admitted = stats.admitted;
+        copy.rejected = stats.rejected;
+        copy.queued = stats.queued;
+        copy.totalWaitMs = stats.totalWaitMs;
+        copy.maxWaitMs = stats.maxWaitMs;
+        return copy;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Admission control: active=" + mActive + " activeBulk=" + mActiveBulk
+            + " waiting=" + mWaiting.size());
+        for (int i = 0; i < mStats.size(); i++) {
+            pw.println("  uid " + mStats.keyAt(i) + ": " + mStats.valueAt(i));
+        }
+    }
+}
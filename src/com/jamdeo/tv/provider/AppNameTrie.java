@@ -0,0 +1,123 @@
+package com.jamdeo.tv.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory prefix trie over app names, used to answer type-ahead suggestions
+ * without going to the database. Names are case folded for matching and
+ * returned as stored. All methods are thread safe.
+ */
+class AppNameTrie {
+
+    /** A suggestion returned by {@link #findByPrefix(String, int)}. */
+    static final class Match {
+        final long id;
+        final String name;
+
+        Match(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static final class Node {
+        // children kept sorted so that matches come out in name order
+        final TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+        // ids of the apps whose folded name ends at this node
+        final ArrayList<Long> ids = new ArrayList<Long>(1);
+    }
+
+    private final Node mRoot = new Node();
+    private final HashMap<Long, String> mNames = new HashMap<Long, String>();
+
+    static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Adds an app, or renames it if the id is already present.
+     */
+    synchronized void put(long id, String name) {
+        removeLocked(id);
+        if (name == null) {
+            return;
+        }
+        String key = fold(name);
+        Node node = mRoot;
+        for (int i = 0; i < key.length(); i++) {
+            Character c = key.charAt(i);
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        node.ids.add(id);
+        mNames.put(id, name);
+    }
+
+    synchronized void remove(long id) {
+        removeLocked(id);
+    }
+
+    private void removeLocked(long id) {
+        String name = mNames.remove(id);
+        if (name == null) {
+            return;
+        }
+        removeFrom(mRoot, fold(name), 0, id);
+    }
+
+    // Returns true if the node is left empty and can be pruned by its parent.
+    private static boolean removeFrom(Node node, String key, int depth, long id) {
+        if (depth == key.length()) {
+            node.ids.remove(Long.valueOf(id));
+        } else {
+            Character c = key.charAt(depth);
+            Node child = node.children.get(c);
+            if (child != null && removeFrom(child, key, depth + 1, id)) {
+                node.children.remove(c);
+            }
+        }
+        return node.ids.isEmpty() && node.children.isEmpty();
+    }
+
+    /**
+     * Returns at most limit apps whose name starts with the given prefix,
+     * ignoring case, in name order.
+     */
+    synchronized List<Match> findByPrefix(String prefix, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<Match>(0);
+        }
+        ArrayList<Match> matches = new ArrayList<Match>(Math.min(limit, 16));
+        String key = prefix == null ? "" : fold(prefix);
+        Node node = mRoot;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.children.get(key.charAt(i));
+        }
+        if (node != null) {
+            collect(node, limit, matches);
+        }
+        return matches;
+    }
+
+    private void collect(Node node, int limit, List<Match> matches) {
+        for (int i = 0; i < node.ids.size() && matches.size() < limit; i++) {
+            long id = node.ids.get(i);
+            matches.add(new Match(id, mNames.get(id)));
+        }
+        for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+            if (matches.size() >= limit) {
+                return;
+            }
+            collect(entry.getValue(), limit, matches);
+        }
+    }
+}
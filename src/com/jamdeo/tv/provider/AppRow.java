@@ -0,0 +1,65 @@
+package com.jamdeo.tv.provider;
+
+/**
+ * An app held in memory by a storage engine. Rows are never modified once
+ * created, so they can be shared with any number of readers without copying.
+ */
+final class AppRow implements HostedApp, InMemorySelection.Row {
+    final long id;
+    final String name;
+    final String pkg;
+    final String vendor;
+    final String description;
+    final long launchCount;
+
+    AppRow(long id, String name, String pkg, String vendor, String description,
+            long launchCount) {
+        this.id = id;
+        this.name = name;
+        this.pkg = pkg;
+        this.vendor = vendor;
+        this.description = description;
+        this.launchCount = launchCount;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPackage() {
+        return pkg;
+    }
+
+    public String getVendor() {
+        return vendor;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public long getLaunchCount() {
+        return launchCount;
+    }
+
+    public Object get(String column) {
+        if (AppsTable.COLUMN_ID.equals(column)) {
+            return id;
+        } else if (AppsTable.COLUMN_NAME.equals(column)) {
+            return name;
+        } else if (AppsTable.COLUMN_PACKAGE.equals(column)) {
+            return pkg;
+        } else if (AppsTable.COLUMN_VENDOR.equals(column)) {
+            return vendor;
+        } else if (AppsTable.COLUMN_DESCRIPTION.equals(column)) {
+            return description;
+        } else if (AppsTable.COLUMN_LAUNCH_COUNT.equals(column)) {
+            return launchCount;
+        }
+        throw new IllegalArgumentException("Unknown column: " + column);
+    }
+}
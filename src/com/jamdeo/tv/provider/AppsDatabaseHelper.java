@@ -1,13 +1,26 @@
 package com.jamdeo.tv.provider;
 
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteDatabase;
 import android.content.Context;
+import android.util.Log;
 
 public class AppsDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "appstable.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 4;
+
+    // Version in which vendors moved into their own table
+    private static final int VERSION_VENDORS_TABLE = 2;
+    // Version 3 turned on incremental auto vacuum, see onOpen()
+    // Version in which apps got a launch count
+    private static final int VERSION_LAUNCH_COUNT = 4;
+
+    // value of PRAGMA auto_vacuum for INCREMENTAL
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final AppsDatabaseMaintenance mMaintenance = new AppsDatabaseMaintenance(this);
 
     public AppsDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -16,6 +29,8 @@ public class AppsDatabaseHelper extends SQLiteOpenHelper {
     // Method is called during creation of the database
     @Override
     public void onCreate(SQLiteDatabase database) {
+        // Auto vacuum cannot be set here, as android_metadata already exists. The
+        // first onOpen() has the maintenance thread turn it on with a full VACUUM.
         AppsTable.onCreate(database);
     }
 
@@ -24,6 +39,40 @@ public class AppsDatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onUpgrade(SQLiteDatabase database, int oldVersion,
             int newVersion) {
+        if (oldVersion < VERSION_VENDORS_TABLE) {
+            AppsTable.upgradeToVendorTable(database);
+        }
+        // version 1 tables were rebuilt above with the current columns
+        if (oldVersion >= VERSION_VENDORS_TABLE && oldVersion < VERSION_LAUNCH_COUNT) {
+            AppsTable.upgradeToLaunchCount(database);
+        }
+    }
+
+    // Method is called when the database is newer than the running code
+    @Override
+    public void onDowngrade(SQLiteDatabase database, int oldVersion,
+            int newVersion) {
         AppsTable.onUpgrade(database, oldVersion, newVersion);
     }
-}
\ No newline at end of file
+
+    // Method is called after the database has been created or upgraded
+    @Override
+    public void onOpen(SQLiteDatabase database) {
+        super.onOpen(database);
+        // A new file, or one created before version 3, only gets auto_vacuum
+        // through a full VACUUM, which rewrites the whole file. Leave it to the background
+        // thread rather than the client whose query opened the database.
+        if (!database.isReadOnly() && DatabaseUtils.longForQuery(database,
+                "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            Log.i(AppsDatabaseHelper.class.getName(), "Scheduling a full vacuum");
+            mMaintenance.requestFullVacuum();
+        }
+    }
+
+    /**
+     * @return the component that keeps this database analyzed and compact.
+     */
+    public AppsDatabaseMaintenance getMaintenance() {
+        return mMaintenance;
+    }
+}
@@ -0,0 +1,214 @@
+package com.jamdeo.tv.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Keeps appstable.db compact and its query planner statistics current. Runs
+ * ANALYZE, incremental vacuum and WAL checkpoints on a background thread once
+ * the provider has been idle for a while after writes, and logs the file size
+ * and fragmentation before and after each run. Also runs the one full VACUUM
+ * that turns on auto_vacuum in a file created by an older version.
+ */
+public class AppsDatabaseMaintenance {
+    private static final String TAG = "AppsDatabaseMaintenance";
+
+    // run this long after the last write when only a few rows changed
+    private static final long IDLE_DELAY_MS = 60 * 1000;
+    // run sooner after a catalog reload or other large write
+    private static final int LARGE_WRITE_ROWS = 500;
+    private static final long LARGE_WRITE_DELAY_MS = 5 * 1000;
+    // no query or write may have happened for this long before a step runs
+    private static final long QUIET_PERIOD_MS = 5 * 1000;
+    // never run more often than this
+    private static final long MIN_INTERVAL_MS = 15 * 60 * 1000;
+    // pages freed per incremental vacuum step, checking for activity in between
+    private static final int VACUUM_STEP_PAGES = 64;
+
+    /** Size and fragmentation of the database file. */
+    public static final class Report {
+        public final long fileBytes;
+        public final long pageSize;
+        public final long pageCount;
+        public final long freePages;
+
+        Report(long fileBytes, long pageSize, long pageCount, long freePages) {
+            this.fileBytes = fileBytes;
+            this.pageSize = pageSize;
+            this.pageCount = pageCount;
+            this.freePages = freePages;
+        }
+
+        /** Fraction of the file's pages that are on the free list. */
+        public float fragmentation() {
+            return pageCount == 0 ? 0 : (float) freePages / pageCount;
+        }
+
+        @Override
+        public String toString() {
+            return fileBytes + " bytes, " + pageCount + " pages of " + pageSize
+                + ", " + freePages + " free (" + Math.round(fragmentation() * 100) + "%)";
+        }
+    }
+
+    private final AppsDatabaseHelper mHelper;
+    private final Object mLock = new Object();
+    private Handler mHandler;
+    // uptime at which the next run is posted, or 0 if none is
+    private long mScheduledAt;
+    private volatile long mLastRunAt;
+    private int mPendingRows;
+    private volatile long mLastActivityAt;
+    private volatile boolean mFullVacuumPending;
+
+    private final Runnable mRunner = new Runnable() {
+        public void run() {
+            synchronized (mLock) {
+                mScheduledAt = 0;
+            }
+            long now = SystemClock.uptimeMillis();
+            long quietAt = mLastActivityAt + QUIET_PERIOD_MS;
+            long allowedAt = mLastRunAt == 0 ? 0 : mLastRunAt + MIN_INTERVAL_MS;
+            if (now < quietAt || now < allowedAt) {
+                schedule(Math.max(quietAt, allowedAt) - now);
+                return;
+            }
+            try {
+                runMaintenance();
+            } catch (SQLException e) {
+                Log.w(TAG, "Maintenance failed", e);
+            }
+        }
+    };
+
+    AppsDatabaseMaintenance(AppsDatabaseHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * Called by the provider for every query, so that maintenance keeps out of
+     * the way of foreground reads.
+     */
+    public void noteRead() {
+        mLastActivityAt = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Called by the provider after a write of the given number of rows.
+     */
+    public void noteWrite(int rows) {
+        mLastActivityAt = SystemClock.uptimeMillis();
+        if (rows <= 0) {
+            return;
+        }
+        int pending;
+        synchronized (mLock) {
+            mPendingRows += rows;
+            pending = mPendingRows;
+        }
+        schedule(pending >= LARGE_WRITE_ROWS ? LARGE_WRITE_DELAY_MS : IDLE_DELAY_MS);
+    }
+
+    /**
+     * Asks for a full VACUUM, which switches the file to incremental auto
+     * vacuum. It runs on the next maintenance run, once the provider is quiet.
+     */
+    public void requestFullVacuum() {
+        mFullVacuumPending = true;
+        schedule(QUIET_PERIOD_MS);
+    }
+
+    private void schedule(long delayMs) {
+        synchronized (mLock) {
+            if (mHandler == null) {
+                HandlerThread thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                mHandler = new Handler(thread.getLooper());
+            }
+            long at = SystemClock.uptimeMillis() + delayMs;
+            if (mScheduledAt != 0 && mScheduledAt <= at) {
+                return;
+            }
+            mHandler.removeCallbacks(mRunner);
+            mHandler.postDelayed(mRunner, delayMs);
+            mScheduledAt = at;
+        }
+    }
+
+    /**
+     * Runs all maintenance steps now on the calling thread. The incremental
+     * vacuum stops early if a client touches the database meanwhile; the rest
+     * of the free pages are left for the next run. A requested full VACUUM
+     * runs instead of the incremental one, and always to the end.
+     *
+     * @return the state of the database file after maintenance.
+     */
+    public Report runMaintenance() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        synchronized (mLock) {
+            mPendingRows = 0;
+        }
+        long started = SystemClock.uptimeMillis();
+        long lastActivity = mLastActivityAt;
+        mLastRunAt = started;
+        Report before = measure(db);
+
+        db.execSQL("ANALYZE");
+
+        long freed = 0;
+        if (mFullVacuumPending) {
+            // the connection that set the pragma may be gone, so set it again
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            mFullVacuumPending = false;
+            freed = before.freePages;
+        }
+        while (freed < before.freePages && mLastActivityAt == lastActivity) {
+            Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")",
+                null);
+            try {
+                // each page is freed by one step of the statement
+                c.getCount();
+            } finally {
+                c.close();
+            }
+            freed += VACUUM_STEP_PAGES;
+        }
+
+        if ("wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db,
+                "PRAGMA journal_mode", null))) {
+            Cursor c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            try {
+                c.getCount();
+            } finally {
+                c.close();
+            }
+        }
+
+        Report after = measure(db);
+        Log.i(TAG, "Maintenance took " + (SystemClock.uptimeMillis() - started)
+            + "ms, before: " + before + ", after: " + after);
+        return after;
+    }
+
+    /**
+     * Returns the current size and fragmentation of the database file.
+     */
+    public Report measure(SQLiteDatabase db) {
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        long fileBytes = db.getPath() != null ? new File(db.getPath()).length() : 0;
+        return new Report(fileBytes, pageSize, pageCount, freePages);
+    }
+}
@@ -0,0 +1,59 @@
+package com.jamdeo.tv.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.util.List;
+
+/**
+ * Storage engine behind {@link HostedApplicationsProvider}. The provider matches
+ * URIs, checks projections and sends notifications; an engine only stores the
+ * apps and answers queries over the public AppsTable columns.
+ *
+ * Selections and sort orders use the columns of the provider's contract, so
+ * vendor is always the vendor name however the engine stores it.
+ */
+public interface AppsStorage {
+
+    /** Passed as the id to operate on every row matching the selection. */
+    public static final long ALL_ROWS = -1;
+
+    public Cursor query(long id, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder);
+
+    /**
+     * @return the _id of the new app.
+     * @throws android.database.SQLException if the values are incomplete or the
+     *         _id is already in use.
+     */
+    public long insert(ContentValues values);
+
+    public int update(long id, ContentValues values, String selection,
+            String[] selectionArgs);
+
+    public int delete(long id, String selection, String[] selectionArgs);
+
+    /**
+     * Returns at most limit apps whose name starts with the prefix, ignoring case.
+     */
+    public List<AppNameTrie.Match> suggest(String prefix, int limit);
+
+    /**
+     * Returns the n most launched apps, most launched first and the newest app
+     * first among equals, without sorting the whole table.
+     */
+    public Cursor queryTop(String[] projection, int n);
+
+    /**
+     * Adds counts[i] to the launch count of the app with _id ids[i], in one
+     * write. Apps that no longer exist are skipped.
+     */
+    public void addLaunchCounts(long[] ids, long[] counts);
+
+    /**
+     * Returns every app in _id order, as an unmodifiable list that later writes
+     * do not change. Engines may hand the same list to every caller until the
+     * next write.
+     */
+    public List<HostedApp> getApps();
+}
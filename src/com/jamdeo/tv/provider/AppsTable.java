@@ -1,5 +1,6 @@
 package com.jamdeo.tv.provider;
 
+import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
@@ -12,20 +13,58 @@ public class AppsTable {
     public static final String COLUMN_PACKAGE = "package";
     public static final String COLUMN_VENDOR = "vendor";
     public static final String COLUMN_DESCRIPTION = "description";
+    // Launches recorded through HostedApplicationsProvider.METHOD_RECORD_LAUNCH
+    public static final String COLUMN_LAUNCH_COUNT = "launch_count";
+
+    // The columns clients can read, in the order returned for a null projection
+    public static final String[] PUBLIC_COLUMNS = {
+            COLUMN_ID,
+            COLUMN_NAME,
+            COLUMN_PACKAGE,
+            COLUMN_VENDOR,
+            COLUMN_DESCRIPTION,
+            COLUMN_LAUNCH_COUNT
+    };
+
+    // Foreign key into VendorsTable, only visible inside the database.
+    // Clients keep reading and writing COLUMN_VENDOR as text.
+    public static final String COLUMN_VENDOR_ID = "vendor_id";
+
+    // Apps joined with their vendor names, as exposed by the provider. Every
+    // app has a vendor, so an inner join loses nothing, and it leaves SQLite
+    // free to look a vendor up first and then use apps_vendor_index.
+    public static final String JOINED_TABLES = TABLE_NAME
+            + " JOIN " + VendorsTable.TABLE_NAME
+            + " USING (" + COLUMN_VENDOR_ID + ")";
+
+    private static final String VENDOR_INDEX = "apps_vendor_index";
+    // lets the most launched apps be read without sorting the table
+    private static final String LAUNCH_COUNT_INDEX = "apps_launch_count_index";
 
     // Database creation SQL statement
-    private static final String DATABASE_CREATE = "create table " 
+    private static final String DATABASE_CREATE = "create table "
             + TABLE_NAME
-            + "(" 
-            + COLUMN_ID + " integer primary key autoincrement, " 
-            + COLUMN_NAME + " text not null, " 
-            + COLUMN_PACKAGE + " text not null, " 
-            + COLUMN_VENDOR + " text not null, " 
-            + COLUMN_DESCRIPTION + " text not null" 
+            + "("
+            + COLUMN_ID + " integer primary key autoincrement, "
+            + COLUMN_NAME + " text not null, "
+            + COLUMN_PACKAGE + " text not null, "
+            + COLUMN_VENDOR_ID + " integer not null references "
+            + VendorsTable.TABLE_NAME + "(" + VendorsTable.COLUMN_ID + "), "
+            + COLUMN_DESCRIPTION + " text not null, "
+            + COLUMN_LAUNCH_COUNT + " integer not null default 0"
             + ");";
 
+    private static final String INDEX_CREATE = "create index "
+            + VENDOR_INDEX + " on " + TABLE_NAME + "(" + COLUMN_VENDOR_ID + ");";
+
+    private static final String LAUNCH_COUNT_INDEX_CREATE = "create index "
+            + LAUNCH_COUNT_INDEX + " on " + TABLE_NAME + "(" + COLUMN_LAUNCH_COUNT + ");";
+
     public static void onCreate(SQLiteDatabase database) {
+        VendorsTable.onCreate(database);
         database.execSQL(DATABASE_CREATE);
+        database.execSQL(INDEX_CREATE);
+        database.execSQL(LAUNCH_COUNT_INDEX_CREATE);
     }
 
     public static void onUpgrade(SQLiteDatabase database, int oldVersion,
@@ -34,6 +73,75 @@ public class AppsTable {
                 + oldVersion + " to " + newVersion
                 + ", which will destroy all old data");
         database.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+        database.execSQL("DROP TABLE IF EXISTS " + VendorsTable.TABLE_NAME);
         onCreate(database);
     }
-}
\ No newline at end of file
+
+    /**
+     * Moves the free text vendor column of a version 1 database into
+     * VendorsTable, keeping every app row and its _id.
+     */
+    public static void upgradeToVendorTable(SQLiteDatabase database) {
+        final String oldTable = TABLE_NAME + "_v1";
+        database.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + oldTable);
+        onCreate(database);
+        database.execSQL("INSERT INTO " + VendorsTable.TABLE_NAME
+                + "(" + VendorsTable.COLUMN_NAME + ") SELECT DISTINCT "
+                + COLUMN_VENDOR + " FROM " + oldTable);
+        database.execSQL("INSERT INTO " + TABLE_NAME + "("
+                + COLUMN_ID + ", " + COLUMN_NAME + ", " + COLUMN_PACKAGE + ", "
+                + COLUMN_VENDOR_ID + ", " + COLUMN_DESCRIPTION + ") SELECT "
+                + oldTable + "." + COLUMN_ID + ", "
+                + oldTable + "." + COLUMN_NAME + ", "
+                + oldTable + "." + COLUMN_PACKAGE + ", "
+                + VendorsTable.TABLE_NAME + "." + VendorsTable.COLUMN_ID + ", "
+                + oldTable + "." + COLUMN_DESCRIPTION
+                + " FROM " + oldTable + " JOIN " + VendorsTable.TABLE_NAME
+                + " ON " + oldTable + "." + COLUMN_VENDOR + " = "
+                + VendorsTable.TABLE_NAME + "." + VendorsTable.COLUMN_NAME);
+        database.execSQL("DROP TABLE " + oldTable);
+    }
+
+    /**
+     * Adds the launch count column to a version 2 or 3 database.
+     */
+    public static void upgradeToLaunchCount(SQLiteDatabase database) {
+        database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                + COLUMN_LAUNCH_COUNT + " integer not null default 0");
+        database.execSQL(LAUNCH_COUNT_INDEX_CREATE);
+    }
+
+    /**
+     * Returns a copy of the given values in which the vendor name has been
+     * replaced by its VendorsTable id, adding the vendor if it is new.
+     */
+    public static ContentValues resolveVendor(SQLiteDatabase database, ContentValues values) {
+        if (values == null || !values.containsKey(COLUMN_VENDOR)) {
+            return values;
+        }
+        ContentValues resolved = new ContentValues(values);
+        String vendor = resolved.getAsString(COLUMN_VENDOR);
+        resolved.remove(COLUMN_VENDOR);
+        if (vendor != null) {
+            resolved.put(COLUMN_VENDOR_ID, VendorsTable.getOrInsertVendorId(database, vendor));
+        } else {
+            // let the not null constraint reject it
+            resolved.putNull(COLUMN_VENDOR_ID);
+        }
+        return resolved;
+    }
+
+    /**
+     * Inserts an app given with the provider's public columns.
+     */
+    public static long insert(SQLiteDatabase database, ContentValues values) {
+        database.beginTransaction();
+        try {
+            long id = database.insertOrThrow(TABLE_NAME, null, resolveVendor(database, values));
+            database.setTransactionSuccessful();
+            return id;
+        } finally {
+            database.endTransaction();
+        }
+    }
+}
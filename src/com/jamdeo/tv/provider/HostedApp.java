@@ -0,0 +1,20 @@
+package com.jamdeo.tv.provider;
+
+/**
+ * An immutable view of one hosted app, as handed to callers in the provider's
+ * own process by {@link LocalAppsCatalog}. The getters return the values of
+ * the matching AppsTable columns.
+ */
+public interface HostedApp {
+    public long getId();
+
+    public String getName();
+
+    public String getPackage();
+
+    public String getVendor();
+
+    public String getDescription();
+
+    public long getLaunchCount();
+}
@@ -1,21 +1,79 @@
 package com.jamdeo.tv.provider;
 
+import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.Resources;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.provider.BaseColumns;
 import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseBooleanArray;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 
 public class HostedApplicationsProvider extends ContentProvider {
-    // database
-    private AppsDatabaseHelper mDb;
+    private static final String TAG = "HostedApplicationsProvider";
+
+    // storage engine, chosen by R.string.config_storageEngine
+    private volatile AppsStorage mStorage;
+
+    // values of R.string.config_storageEngine
+    private static final String STORAGE_SQLITE = "sqlite";
+    private static final String STORAGE_MEMORY = "memory";
+
+    // where the in-memory engine keeps its snapshot
+    private static final String SNAPSHOT_NAME = "appstable.snapshot";
+
+    // Admission control, so that a client syncing the whole table cannot hold up
+    // the launcher's reads. Bulk calls are batches, and calls on every row of the
+    // table from callers other than those in R.array.config_foregroundPackages.
+    // A waiting call blocks its binder thread, so running and waiting calls
+    // together hold at most 8 of the 16 binder threads, and the launcher's call
+    // always gets as far as admission.
+    private static final int MAX_ACTIVE_CALLS = 4;
+    private static final int MAX_ACTIVE_BULK_CALLS = 1;
+    private static final int MAX_ACTIVE_CALLS_PER_CALLER = 2;
+    private static final int MAX_WAITING_CALLS_PER_CALLER = 1;
+    private static final int MAX_WAITING_CALLS = 4;
+    private static final long MAX_WAIT_MS = 5000;
+    private volatile AdmissionController mAdmission = new AdmissionController(MAX_ACTIVE_CALLS,
+        MAX_ACTIVE_BULK_CALLS, MAX_ACTIVE_CALLS_PER_CALLER, MAX_WAITING_CALLS_PER_CALLER,
+        MAX_WAITING_CALLS, MAX_WAIT_MS);
+
+    // the ticket of the call running on this thread, so that the single calls a
+    // batch is made of are not admitted again
+    private final ThreadLocal<AdmissionController.Ticket> mAdmitted =
+        new ThreadLocal<AdmissionController.Ticket>();
+
+    // R.array.config_foregroundPackages, and whether each calling UID seen so far
+    // belongs to one of them
+    private String[] mForegroundPackages = new String[0];
+    private final SparseBooleanArray mForegroundUids = new SparseBooleanArray();
+
+    // launches counted in memory and written to the storage engine in batches
+    private final LaunchCounter mLaunchCounter = new LaunchCounter(new LaunchCounter.Sink() {
+        public void addLaunchCounts(long[] ids, long[] counts) {
+            mStorage.addLaunchCounts(ids, counts);
+            getContext().getContentResolver().notifyChange(TOP_URI, null);
+        }
+    });
 
     // used for the UriMacher
     private static final int APPS = 1;
@@ -24,6 +82,13 @@ public class HostedApplicationsProvider extends ContentProvider {
     private static final int APP_PACKAGE = 4;
     private static final int APP_DESCRIPTION = 5;
     private static final int APP_VENDOR = 6;
+    private static final int SEARCH_SUGGEST = 7;
+    private static final int TOP = 8;
+
+    // number of suggestions returned when the caller does not set a limit
+    private static final int DEFAULT_SUGGEST_LIMIT = 10;
+    // number of apps returned by TOP_URI when the caller does not set n
+    private static final int DEFAULT_TOP_COUNT = 10;
 
     private static final String AUTHORITY = "com.jamdeo.tv.provider.hostedapps";
     private static final String BASE_PATH = "hosted_apps";
@@ -31,6 +96,32 @@ public class HostedApplicationsProvider extends ContentProvider {
         + "/" + BASE_PATH);
     public static final Uri CONTENT_ID_URI_BASE = Uri.parse("content://" + AUTHORITY
         + "/" + BASE_PATH + "/");
+    // set android:searchSuggestPath="hosted_apps" to use this from a searchable
+    public static final Uri SUGGEST_URI = Uri.parse("content://" + AUTHORITY
+        + "/" + BASE_PATH + "/" + SearchManager.SUGGEST_URI_PATH_QUERY);
+    // The most launched apps, most launched first. Set the number of apps with
+    // the n query parameter. Selections and sort orders are not supported.
+    public static final Uri TOP_URI = Uri.parse("content://" + AUTHORITY
+        + "/" + BASE_PATH + "/top");
+    public static final String TOP_PARAMETER_COUNT = "n";
+
+    /**
+     * Method for {@link android.content.ContentResolver#call} that counts one launch
+     * of the app whose _id is given as the argument. Launches show up in
+     * {@link AppsTable#COLUMN_LAUNCH_COUNT} within {@link LaunchCounter#FLUSH_DELAY_MS}.
+     */
+    public static final String METHOD_RECORD_LAUNCH = "record_launch";
+
+    /**
+     * Method for {@link android.content.ContentResolver#call} that returns the
+     * admission counters of every calling UID as text, under
+     * {@link #KEY_ADMISSION_STATS}. dumpsys shows the same from API 18 on.
+     */
+    public static final String METHOD_GET_ADMISSION_STATS = "get_admission_stats";
+    public static final String KEY_ADMISSION_STATS = "admission_stats";
+
+    // the provider's android:permission, which the framework does not check for call()
+    static final String PERMISSION_ACCESS_DATA = "com.jamdeo.tv.provider.hostedapps.ACCESS_DATA";
 
     public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
         + "/hosted_apps";
@@ -41,43 +132,93 @@ public class HostedApplicationsProvider extends ContentProvider {
     static {
         sURIMatcher.addURI(AUTHORITY, BASE_PATH, APPS);
         sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/#", APP_ID);
+        sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/top", TOP);
+        sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/" + SearchManager.SUGGEST_URI_PATH_QUERY,
+            SEARCH_SUGGEST);
+        sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/" + SearchManager.SUGGEST_URI_PATH_QUERY
+            + "/*", SEARCH_SUGGEST);
     }
 
+    private static final String[] SUGGEST_COLUMNS = {
+        BaseColumns._ID
+        , SearchManager.SUGGEST_COLUMN_TEXT_1
+        , SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID
+        };
+
     @Override
     public boolean onCreate() {
-            mDb = new AppsDatabaseHelper(getContext());
+            mStorage = createStorage(getContext());
+            try {
+                mForegroundPackages = getContext().getResources().getStringArray(
+                    R.array.config_foregroundPackages);
+            } catch (UnsupportedOperationException e) {
+                // isolated test contexts have no resources
+            } catch (Resources.NotFoundException e) {
+                // no overlay, so no caller is foreground
+            }
             return false;
     }
 
+    private static AppsStorage createStorage(Context context) {
+        String engine;
+        try {
+            engine = context.getResources().getString(R.string.config_storageEngine);
+        } catch (UnsupportedOperationException e) {
+            // isolated test contexts have no resources
+            engine = STORAGE_SQLITE;
+        }
+        if (STORAGE_MEMORY.equals(engine)) {
+            return new InMemoryAppsStorage(context.getFileStreamPath(SNAPSHOT_NAME));
+        }
+        if (!STORAGE_SQLITE.equals(engine)) {
+            Log.w(TAG, "Unknown storage engine " + engine + ", using " + STORAGE_SQLITE);
+        }
+        return new SqliteAppsStorage(context);
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                     String sortOrder) {
 
-        // Uisng SQLiteQueryBuilder instead of query() method
-        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        if (sURIMatcher.match(uri) == SEARCH_SUGGEST) {
+            AdmissionController.Ticket ticket = admit(false);
+            try {
+                return querySuggestions(uri, selectionArgs);
+            } finally {
+                release(ticket);
+            }
+        }
 
         // check if the caller has requested a column which does not exists
         checkColumns(projection);
 
-        // Set the table
-        queryBuilder.setTables(AppsTable.TABLE_NAME);
+        if (sURIMatcher.match(uri) == TOP) {
+            return queryTop(uri, projection, selection, sortOrder);
+        }
 
+        long id;
         int uriType = sURIMatcher.match(uri);
         switch (uriType) {
         case APPS:
+            id = AppsStorage.ALL_ROWS;
             break;
         case APP_ID:
             // adding the ID to the original query
-            queryBuilder.appendWhere(AppsTable.COLUMN_ID + "="
-                + uri.getLastPathSegment());
+            id = Long.parseLong(uri.getLastPathSegment());
             break;
         default:
             throw new IllegalArgumentException("Unknown URI: " + uri);
         }
 
-        SQLiteDatabase db = mDb.getWritableDatabase();
-        Cursor cursor = queryBuilder.query(db, projection, selection,
-            selectionArgs, null, null, sortOrder);
+        Cursor cursor;
+        AdmissionController.Ticket ticket = admit(isBulk(id, selection));
+        try {
+            cursor = mStorage.query(id, projection, selection, selectionArgs, sortOrder);
+            // fill the first window while admitted, as that is where the query runs
+            cursor.getCount();
+        } finally {
+            release(ticket);
+        }
         // make sure that potential listeners are getting notified
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
 
@@ -89,9 +230,12 @@ public class HostedApplicationsProvider extends ContentProvider {
         int match = sURIMatcher.match(uri);
         switch (match) {
             case APPS:
+            case TOP:
                 return CONTENT_TYPE;
             case APP_ID:
                 return CONTENT_ITEM_TYPE;
+            case SEARCH_SUGGEST:
+                return SearchManager.SUGGEST_MIME_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -100,12 +244,15 @@ public class HostedApplicationsProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         int uriType = sURIMatcher.match(uri);
-        SQLiteDatabase sqlDB = mDb.getWritableDatabase();
-        int rowsDeleted = 0;
         long id = 0;
         switch (uriType) {
         case APPS:
-            id = sqlDB.insertOrThrow(AppsTable.TABLE_NAME, null, values);
+            AdmissionController.Ticket ticket = admit(false);
+            try {
+                id = mStorage.insert(values);
+            } finally {
+                release(ticket);
+            }
             break;
         default:
             throw new IllegalArgumentException("Unknown URI: " + uri);
@@ -116,28 +263,13 @@ public class HostedApplicationsProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        int uriType = sURIMatcher.match(uri);
-        SQLiteDatabase sqlDB = mDb.getWritableDatabase();
-        int rowsDeleted = 0;
-        switch (uriType) {
-        case APPS:
-            rowsDeleted = sqlDB.delete(AppsTable.TABLE_NAME, selection,
-                selectionArgs);
-            break;
-        case APP_ID:
-            String id = uri.getLastPathSegment();
-            if (TextUtils.isEmpty(selection)) {
-                rowsDeleted = sqlDB.delete(AppsTable.TABLE_NAME
-                    , AppsTable.COLUMN_ID + "=" + id
-                    , null);
-            } else {
-                rowsDeleted = sqlDB.delete(AppsTable.TABLE_NAME
-                    , AppsTable.COLUMN_ID + "=" + id + " and " + selection
-                    , selectionArgs);
-            }
-            break;
-        default:
-            throw new IllegalArgumentException("Unknown URI: " + uri);
+        long id = rowId(uri);
+        int rowsDeleted;
+        AdmissionController.Ticket ticket = admit(isBulk(id, selection));
+        try {
+            rowsDeleted = mStorage.delete(id, selection, selectionArgs);
+        } finally {
+            release(ticket);
         }
         getContext().getContentResolver().notifyChange(uri, null);
         return rowsDeleted;
@@ -145,47 +277,229 @@ public class HostedApplicationsProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        long id = rowId(uri);
+        int rowsUpdated;
+        AdmissionController.Ticket ticket = admit(isBulk(id, selection));
+        try {
+            rowsUpdated = mStorage.update(id, values, selection, selectionArgs);
+        } finally {
+            release(ticket);
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+        return rowsUpdated;
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        // admitted once for all of its rows, which then do not queue again
+        AdmissionController.Ticket ticket = admit(true);
+        try {
+            return super.bulkInsert(uri, values);
+        } finally {
+            release(ticket);
+        }
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        AdmissionController.Ticket ticket = admit(true);
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            release(ticket);
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_RECORD_LAUNCH.equals(method)) {
+            enforceAccess(method);
+            long id;
+            try {
+                id = Long.parseLong(arg);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad _id for " + method + ": " + arg);
+            }
+            // not admitted, as counting a launch never touches the storage engine
+            mLaunchCounter.recordLaunch(id);
+            return null;
+        }
+        if (METHOD_GET_ADMISSION_STATS.equals(method)) {
+            enforceAccess(method);
+            StringWriter stats = new StringWriter();
+            mAdmission.dump(new PrintWriter(stats));
+            Bundle result = new Bundle();
+            result.putString(KEY_ADMISSION_STATS, stats.toString());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    private void enforceAccess(String method) {
+        getContext().enforceCallingOrSelfPermission(PERMISSION_ACCESS_DATA,
+            "Calling " + method + " requires " + PERMISSION_ACCESS_DATA);
+    }
+
+    /**
+     * Returns the id of the row a write to the given URI is limited to, or
+     * {@link AppsStorage#ALL_ROWS}.
+     */
+    private static long rowId(Uri uri) {
         int uriType = sURIMatcher.match(uri);
-        SQLiteDatabase sqlDB = mDb.getWritableDatabase();
-        int rowsUpdated = 0;
         switch (uriType) {
         case APPS:
-            rowsUpdated = sqlDB.update(AppsTable.TABLE_NAME
-                , values
-                , selection
-                , selectionArgs);
-            break;
+            return AppsStorage.ALL_ROWS;
         case APP_ID:
-            String id = uri.getLastPathSegment();
-            if (TextUtils.isEmpty(selection)) {
-                rowsUpdated = sqlDB.update(AppsTable.TABLE_NAME
-                    , values
-                    , AppsTable.COLUMN_ID + "=" + id
-                    , null);
-            } else {
-                rowsUpdated = sqlDB.update(AppsTable.TABLE_NAME
-                    , values
-                    , AppsTable.COLUMN_ID + "=" + id 
-                    + " and " 
-                    + selection
-                    , selectionArgs);
-            }
-            break;
+            return Long.parseLong(uri.getLastPathSegment());
         default:
             throw new IllegalArgumentException("Unknown URI: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
-        return rowsUpdated;
+    }
+
+    private Cursor queryTop(Uri uri, String[] projection, String selection,
+            String sortOrder) {
+        if (!TextUtils.isEmpty(selection) || !TextUtils.isEmpty(sortOrder)) {
+            throw new IllegalArgumentException("Selection and sort order not supported: " + uri);
+        }
+        int n = DEFAULT_TOP_COUNT;
+        String countParam = uri.getQueryParameter(TOP_PARAMETER_COUNT);
+        if (countParam != null) {
+            try {
+                n = Integer.parseInt(countParam);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad n in URI: " + uri);
+            }
+            if (n < 0) {
+                throw new IllegalArgumentException("Bad n in URI: " + uri);
+            }
+        }
+
+        Cursor cursor;
+        AdmissionController.Ticket ticket = admit(false);
+        try {
+            cursor = mStorage.queryTop(projection, n);
+            cursor.getCount();
+        } finally {
+            release(ticket);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), TOP_URI);
+        return cursor;
+    }
+
+    /**
+     * Waits for the calling app's turn to run a call.
+     *
+     * @throws IllegalStateException if the caller has too many calls waiting or
+     *         waited too long.
+     */
+    private AdmissionController.Ticket admit(boolean bulk) {
+        if (mAdmitted.get() != null) {
+            // part of a batch that is already admitted
+            return null;
+        }
+        int uid = Binder.getCallingUid();
+        AdmissionController.Ticket ticket =
+            mAdmission.acquire(uid, bulk && !isForegroundCaller(uid));
+        mAdmitted.set(ticket);
+        return ticket;
+    }
+
+    private void release(AdmissionController.Ticket ticket) {
+        if (ticket != null) {
+            mAdmitted.remove();
+            mAdmission.release(ticket);
+        }
+    }
+
+    // A call on every row of the table, such as a full sync or a clear.
+    private static boolean isBulk(long id, String selection) {
+        return id == AppsStorage.ALL_ROWS && TextUtils.isEmpty(selection);
+    }
+
+    /**
+     * Returns whether the UID belongs to one of R.array.config_foregroundPackages,
+     * such as the launcher, whose calls are never held up behind bulk calls.
+     */
+    private boolean isForegroundCaller(int uid) {
+        synchronized (mForegroundUids) {
+            int index = mForegroundUids.indexOfKey(uid);
+            if (index >= 0) {
+                return mForegroundUids.valueAt(index);
+            }
+        }
+        boolean foreground = false;
+        if (mForegroundPackages.length > 0) {
+            String[] packages = null;
+            try {
+                packages = getContext().getPackageManager().getPackagesForUid(uid);
+            } catch (UnsupportedOperationException e) {
+                // isolated test contexts have no package manager
+            }
+            if (packages != null) {
+                List<String> configured = Arrays.asList(mForegroundPackages);
+                for (String packageName : packages) {
+                    foreground |= configured.contains(packageName);
+                }
+            }
+        }
+        synchronized (mForegroundUids) {
+            mForegroundUids.put(uid, foreground);
+        }
+        return foreground;
+    }
+
+    /**
+     * Answers a search suggestion query from the storage engine's name trie. The query
+     * text is taken from the last path segment, or from the first selection argument as
+     * SearchManager does when a searchSuggestSelection is configured.
+     */
+    private Cursor querySuggestions(Uri uri, String[] selectionArgs) {
+        String prefix = null;
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() > 2) {
+            prefix = segments.get(2);
+        } else if (selectionArgs != null && selectionArgs.length > 0) {
+            prefix = selectionArgs[0];
+        }
+        int limit = DEFAULT_SUGGEST_LIMIT;
+        String limitParam = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+        if (limitParam != null) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad limit in URI: " + uri);
+            }
+            if (limit < 0) {
+                throw new IllegalArgumentException("Bad limit in URI: " + uri);
+            }
+        }
+
+        List<AppNameTrie.Match> matches = mStorage.suggest(prefix, limit);
+        MatrixCursor cursor = new MatrixCursor(SUGGEST_COLUMNS, matches.size());
+        for (AppNameTrie.Match match : matches) {
+            cursor.addRow(new Object[] { match.id, match.name, String.valueOf(match.id) });
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Returns every app without going through a cursor. Only reachable from the
+     * provider's own process, see {@link LocalAppsCatalog}.
+     */
+    List<HostedApp> getApps() {
+        return mStorage.getApps();
+    }
+
+    // ContentProvider.dump() only exists from API 18, so no @Override; older
+    // releases get the same text through METHOD_GET_ADMISSION_STATS.
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mAdmission.dump(writer);
     }
 
     private void checkColumns(String[] projection) {
-        String[] available = {
-            AppsTable.COLUMN_ID
-            , AppsTable.COLUMN_NAME
-            , AppsTable.COLUMN_PACKAGE
-            , AppsTable.COLUMN_VENDOR
-            , AppsTable.COLUMN_DESCRIPTION
-            };
+        String[] available = AppsTable.PUBLIC_COLUMNS;
         if (projection != null) {
             HashSet<String> requestedColumns = new HashSet<String>(Arrays.asList(projection));
             HashSet<String> availableColumns = new HashSet<String>(Arrays.asList(available));
@@ -202,10 +516,61 @@ public class HostedApplicationsProvider extends ContentProvider {
      * instantiating the provider in a test context; {@link android.test.ProviderTestCase2} does
      * this during the call to setUp()
      *
-     * @return a handle to the database helper object for the provider's data.
+     * @return a handle to the database helper object for the provider's data, or null
+     *         if the provider does not run on the SQLite storage engine.
      */
     public AppsDatabaseHelper getOpenHelperForTest() {
-        return mDb;
+        AppsStorage storage = mStorage;
+        return storage instanceof SqliteAppsStorage
+            ? ((SqliteAppsStorage) storage).getOpenHelper() : null;
+    }
+
+    /**
+     * A test package can call this to run the provider on another storage engine. The
+     * test case class is responsible for doing so before touching the provider's data.
+     */
+    public void setStorageForTest(AppsStorage storage) {
+        mStorage = storage;
+    }
+
+    /**
+     * @return the storage engine the provider currently runs on.
+     */
+    public AppsStorage getStorageForTest() {
+        return mStorage;
+    }
+
+    /**
+     * Writes the launches counted so far to the storage engine now, instead of
+     * waiting for the next scheduled flush.
+     */
+    public void flushLaunchCountsForTest() {
+        mLaunchCounter.flush();
+    }
+
+    /**
+     * A test package can call this to run the provider's calls through admission
+     * control with other limits, for instance when all of its threads share a UID.
+     */
+    public void setAdmissionControllerForTest(AdmissionController admission) {
+        mAdmission = admission;
+    }
+
+    /**
+     * A test package can call this to have the calls of a UID treated as if it
+     * belonged to one of R.array.config_foregroundPackages, or not.
+     */
+    public void setForegroundCallerForTest(int uid, boolean foreground) {
+        synchronized (mForegroundUids) {
+            mForegroundUids.put(uid, foreground);
+        }
+    }
+
+    /**
+     * @return the admission counters of the given calling UID.
+     */
+    public AdmissionController.CallerStats getAdmissionStatsForTest(int uid) {
+        return mAdmission.getStats(uid);
     }
 
 }
\ No newline at end of file
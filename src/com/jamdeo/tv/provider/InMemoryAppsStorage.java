@@ -0,0 +1,596 @@
+package com.jamdeo.tv.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A storage engine that keeps every app in memory, for read-mostly use on
+ * low-end devices and for exercising the provider without SQLite. Rows are
+ * held by _id with secondary indexes on package, vendor and launch count, and
+ * are written to a snapshot file shortly after each change.
+ */
+public class InMemoryAppsStorage implements AppsStorage {
+    private static final String TAG = "InMemoryAppsStorage";
+
+    // snapshot file layout
+    private static final int SNAPSHOT_MAGIC = 0x48415053;
+    private static final int SNAPSHOT_VERSION = 2;
+    // version 1 snapshots have no launch counts
+    private static final int SNAPSHOT_VERSION_NO_LAUNCH_COUNT = 1;
+    // delay between a write and the snapshot that includes it
+    private static final long SNAPSHOT_DELAY_MS = 2 * 1000;
+
+    private static final Comparator<AppRow> ID_ORDER = new Comparator<AppRow>() {
+        public int compare(AppRow a, AppRow b) {
+            return a.id < b.id ? -1 : a.id == b.id ? 0 : 1;
+        }
+    };
+
+    // most launched first, then newest first as in the SQLite engine
+    private static final Comparator<AppRow> LAUNCH_ORDER = new Comparator<AppRow>() {
+        public int compare(AppRow a, AppRow b) {
+            if (a.launchCount != b.launchCount) {
+                return a.launchCount > b.launchCount ? -1 : 1;
+            }
+            return a.id > b.id ? -1 : a.id == b.id ? 0 : 1;
+        }
+    };
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    // all rows by _id, in _id order. Writers leave it compacted, see compactRows()
+    private final SparseArray<AppRow> mRows = new SparseArray<AppRow>();
+    private final HashMap<String, HashSet<AppRow>> mByPackage =
+        new HashMap<String, HashSet<AppRow>>();
+    private final HashMap<String, HashSet<AppRow>> mByVendor =
+        new HashMap<String, HashSet<AppRow>>();
+    private final TreeSet<AppRow> mByLaunchCount = new TreeSet<AppRow>(LAUNCH_ORDER);
+    private long mNextId = 1;
+
+    // every row in _id order for in-process readers, dropped on every write
+    private volatile List<HostedApp> mApps;
+
+    // app names for suggestions, built on first use and then kept in step
+    // with every write while the write lock is held
+    private volatile AppNameTrie mNameTrie;
+    private final Object mNameTrieLock = new Object();
+
+    private final File mSnapshotFile;
+    private Handler mSnapshotHandler;
+    private boolean mSnapshotPending;
+
+    private final Runnable mSnapshotWriter = new Runnable() {
+        public void run() {
+            synchronized (mSnapshotWriter) {
+                mSnapshotPending = false;
+            }
+            saveSnapshot();
+        }
+    };
+
+    /**
+     * @param snapshotFile where to keep the apps between runs, or null to keep
+     *        them in memory only.
+     */
+    public InMemoryAppsStorage(File snapshotFile) {
+        mSnapshotFile = snapshotFile;
+        if (snapshotFile != null) {
+            loadSnapshot();
+        }
+    }
+
+    public Cursor query(long id, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        String[] columns = projection != null ? projection : AppsTable.PUBLIC_COLUMNS;
+        InMemorySelection.Expr expr = InMemorySelection.parse(selection, selectionArgs);
+        Comparator<InMemorySelection.Row> order = InMemorySelection.parseSortOrder(sortOrder);
+
+        List<AppRow> rows;
+        mLock.readLock().lock();
+        try {
+            rows = select(id, expr);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        if (order != null) {
+            Collections.sort(rows, order);
+        }
+        return toCursor(columns, rows);
+    }
+
+    public Cursor queryTop(String[] projection, int n) {
+        String[] columns = projection != null ? projection : AppsTable.PUBLIC_COLUMNS;
+        ArrayList<AppRow> rows = new ArrayList<AppRow>();
+        mLock.readLock().lock();
+        try {
+            Iterator<AppRow> it = mByLaunchCount.iterator();
+            while (rows.size() < n && it.hasNext()) {
+                rows.add(it.next());
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return toCursor(columns, rows);
+    }
+
+    public void addLaunchCounts(long[] ids, long[] counts) {
+        mLock.writeLock().lock();
+        try {
+            boolean changed = false;
+            for (int i = 0; i < ids.length; i++) {
+                AppRow row = get(ids[i]);
+                if (row == null) {
+                    continue;
+                }
+                remove(row);
+                add(new AppRow(row.id, row.name, row.pkg, row.vendor, row.description,
+                    row.launchCount + counts[i]));
+                changed = true;
+            }
+            compactRows();
+            if (changed) {
+                mApps = null;
+                scheduleSnapshot();
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private static Cursor toCursor(String[] columns, List<AppRow> rows) {
+        MatrixCursor cursor = new MatrixCursor(columns, rows.size());
+        for (AppRow row : rows) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = row.get(columns[i]);
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    public long insert(ContentValues values) {
+        mLock.writeLock().lock();
+        try {
+            long id = mNextId;
+            Long requested = values.getAsLong(AppsTable.COLUMN_ID);
+            if (requested != null) {
+                id = requested;
+            }
+            AppRow row = toRow(id, values, null);
+            if (get(id) != null) {
+                throw new SQLException("An app with _id " + id + " already exists");
+            }
+            add(row);
+            mNextId = Math.max(mNextId, id + 1);
+            mApps = null;
+            synchronized (mNameTrieLock) {
+                if (mNameTrie != null) {
+                    mNameTrie.put(id, row.name);
+                }
+            }
+            scheduleSnapshot();
+            return id;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public int update(long id, ContentValues values, String selection,
+            String[] selectionArgs) {
+        InMemorySelection.Expr expr = InMemorySelection.parse(selection, selectionArgs);
+        mLock.writeLock().lock();
+        try {
+            List<AppRow> rows = select(id, expr);
+            Long newId = values.getAsLong(AppsTable.COLUMN_ID);
+            // every matching row would get the same _id, as the UNIQUE _id fails in SQLite
+            if (newId != null && rows.size() > 1) {
+                throw new SQLException("An update of " + rows.size()
+                    + " apps cannot set _id " + newId);
+            }
+            // check every row first so that a failed update changes nothing
+            ArrayList<AppRow> updated = new ArrayList<AppRow>(rows.size());
+            for (AppRow row : rows) {
+                AppRow newRow = toRow(newId != null ? newId : row.id, values, row);
+                if (newRow.id != row.id && get(newRow.id) != null) {
+                    throw new SQLException("An app with _id " + newRow.id + " already exists");
+                }
+                updated.add(newRow);
+            }
+            for (int i = 0; i < rows.size(); i++) {
+                AppRow newRow = updated.get(i);
+                remove(rows.get(i));
+                add(newRow);
+                mNextId = Math.max(mNextId, newRow.id + 1);
+                synchronized (mNameTrieLock) {
+                    if (mNameTrie != null) {
+                        mNameTrie.remove(rows.get(i).id);
+                        mNameTrie.put(newRow.id, newRow.name);
+                    }
+                }
+            }
+            compactRows();
+            if (!rows.isEmpty()) {
+                mApps = null;
+                scheduleSnapshot();
+            }
+            return rows.size();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public int delete(long id, String selection, String[] selectionArgs) {
+        InMemorySelection.Expr expr = InMemorySelection.parse(selection, selectionArgs);
+        mLock.writeLock().lock();
+        try {
+            List<AppRow> rows = select(id, expr);
+            for (AppRow row : rows) {
+                remove(row);
+                synchronized (mNameTrieLock) {
+                    if (mNameTrie != null) {
+                        mNameTrie.remove(row.id);
+                    }
+                }
+            }
+            compactRows();
+            if (!rows.isEmpty()) {
+                mApps = null;
+                scheduleSnapshot();
+            }
+            return rows.size();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public List<AppNameTrie.Match> suggest(String prefix, int limit) {
+        return getNameTrie().findByPrefix(prefix, limit);
+    }
+
+    public List<HostedApp> getApps() {
+        List<HostedApp> apps = mApps;
+        if (apps != null) {
+            return apps;
+        }
+        mLock.readLock().lock();
+        try {
+            // rows are immutable, so the list only copies references
+            ArrayList<HostedApp> rows = new ArrayList<HostedApp>(mRows.size());
+            for (int i = 0; i < mRows.size(); i++) {
+                rows.add(mRows.valueAt(i));
+            }
+            apps = Collections.unmodifiableList(rows);
+            // writers hold the write lock, so nothing changed since the copy
+            mApps = apps;
+            return apps;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    private AppNameTrie getNameTrie() {
+        AppNameTrie trie = mNameTrie;
+        if (trie != null) {
+            return trie;
+        }
+        mLock.readLock().lock();
+        try {
+            synchronized (mNameTrieLock) {
+                if (mNameTrie == null) {
+                    trie = new AppNameTrie();
+                    for (int i = 0; i < mRows.size(); i++) {
+                        AppRow row = mRows.valueAt(i);
+                        trie.put(row.id, row.name);
+                    }
+                    mNameTrie = trie;
+                }
+                return mNameTrie;
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Returns the rows matching the id and selection, in _id order.
+    // Call with the lock held.
+    private List<AppRow> select(long id, InMemorySelection.Expr expr) {
+        ArrayList<AppRow> rows = new ArrayList<AppRow>();
+        if (id != ALL_ROWS) {
+            AppRow row = get(id);
+            if (row != null && (expr == null || expr.matches(row))) {
+                rows.add(row);
+            }
+            return rows;
+        }
+
+        List<Object> ids = expr != null ? expr.equalValues(AppsTable.COLUMN_ID) : null;
+        if (ids != null) {
+            HashSet<AppRow> candidates = new HashSet<AppRow>();
+            for (Object value : ids) {
+                AppRow row = value instanceof Long ? get((Long) value) : null;
+                if (row != null) {
+                    candidates.add(row);
+                }
+            }
+            return filter(candidates, expr);
+        }
+        List<Object> packages = expr != null ? expr.equalValues(AppsTable.COLUMN_PACKAGE) : null;
+        if (packages != null) {
+            return filter(lookup(mByPackage, packages), expr);
+        }
+        List<Object> vendors = expr != null ? expr.equalValues(AppsTable.COLUMN_VENDOR) : null;
+        if (vendors != null) {
+            return filter(lookup(mByVendor, vendors), expr);
+        }
+
+        rows.ensureCapacity(mRows.size());
+        for (int i = 0; i < mRows.size(); i++) {
+            AppRow row = mRows.valueAt(i);
+            if (expr == null || expr.matches(row)) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private static HashSet<AppRow> lookup(HashMap<String, HashSet<AppRow>> index, List<Object> keys) {
+        HashSet<AppRow> candidates = new HashSet<AppRow>();
+        for (Object key : keys) {
+            HashSet<AppRow> rows = index.get(key);
+            if (rows != null) {
+                candidates.addAll(rows);
+            }
+        }
+        return candidates;
+    }
+
+    private static List<AppRow> filter(HashSet<AppRow> candidates, InMemorySelection.Expr expr) {
+        ArrayList<AppRow> rows = new ArrayList<AppRow>(candidates.size());
+        for (AppRow row : candidates) {
+            if (expr.matches(row)) {
+                rows.add(row);
+            }
+        }
+        Collections.sort(rows, ID_ORDER);
+        return rows;
+    }
+
+    private AppRow get(long id) {
+        if (id < 0 || id > Integer.MAX_VALUE) {
+            return null;
+        }
+        return mRows.get((int) id);
+    }
+
+    private void add(AppRow row) {
+        mRows.put((int) row.id, row);
+        addToIndex(mByPackage, row.pkg, row);
+        addToIndex(mByVendor, row.vendor, row);
+        mByLaunchCount.add(row);
+    }
+
+    private void remove(AppRow row) {
+        mRows.remove((int) row.id);
+        removeFromIndex(mByPackage, row.pkg, row);
+        removeFromIndex(mByVendor, row.vendor, row);
+        mByLaunchCount.remove(row);
+    }
+
+    // SparseArray compacts itself on the first size() or valueAt() after a
+    // remove. Writers call this before letting go of the write lock, so that
+    // readers sharing the read lock never modify the array.
+    private void compactRows() {
+        mRows.size();
+    }
+
+    private static void addToIndex(HashMap<String, HashSet<AppRow>> index, String key, AppRow row) {
+        HashSet<AppRow> rows = index.get(key);
+        if (rows == null) {
+            rows = new HashSet<AppRow>();
+            index.put(key, rows);
+        }
+        rows.add(row);
+    }
+
+    private static void removeFromIndex(HashMap<String, HashSet<AppRow>> index, String key,
+            AppRow row) {
+        HashSet<AppRow> rows = index.get(key);
+        if (rows != null) {
+            rows.remove(row);
+            if (rows.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    // Builds a row from the values, taking missing columns from the old row.
+    // Mirrors the constraints of the SQLite table.
+    private static AppRow toRow(long id, ContentValues values, AppRow old) {
+        if (id < 1 || id > Integer.MAX_VALUE) {
+            throw new SQLException("_id out of range: " + id);
+        }
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            String column = entry.getKey();
+            if (!column.equals(AppsTable.COLUMN_ID) && !column.equals(AppsTable.COLUMN_NAME)
+                    && !column.equals(AppsTable.COLUMN_PACKAGE)
+                    && !column.equals(AppsTable.COLUMN_VENDOR)
+                    && !column.equals(AppsTable.COLUMN_DESCRIPTION)
+                    && !column.equals(AppsTable.COLUMN_LAUNCH_COUNT)) {
+                throw new SQLException("No such column: " + column);
+            }
+        }
+        return new AppRow(id,
+            column(values, AppsTable.COLUMN_NAME, old != null ? old.name : null),
+            column(values, AppsTable.COLUMN_PACKAGE, old != null ? old.pkg : null),
+            column(values, AppsTable.COLUMN_VENDOR, old != null ? old.vendor : null),
+            column(values, AppsTable.COLUMN_DESCRIPTION, old != null ? old.description : null),
+            launchCount(values, old != null ? old.launchCount : 0));
+    }
+
+    private static long launchCount(ContentValues values, long oldValue) {
+        if (!values.containsKey(AppsTable.COLUMN_LAUNCH_COUNT)) {
+            return oldValue;
+        }
+        Long value = values.getAsLong(AppsTable.COLUMN_LAUNCH_COUNT);
+        if (value == null) {
+            throw new SQLException(AppsTable.COLUMN_LAUNCH_COUNT + " may not be NULL");
+        }
+        return value;
+    }
+
+    private static String column(ContentValues values, String column, String oldValue) {
+        String value = values.containsKey(column) ? values.getAsString(column) : oldValue;
+        if (value == null) {
+            throw new SQLException(column + " may not be NULL");
+        }
+        return value;
+    }
+
+    private void scheduleSnapshot() {
+        if (mSnapshotFile == null) {
+            return;
+        }
+        synchronized (mSnapshotWriter) {
+            if (mSnapshotPending) {
+                return;
+            }
+            if (mSnapshotHandler == null) {
+                HandlerThread thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                mSnapshotHandler = new Handler(thread.getLooper());
+            }
+            mSnapshotHandler.postDelayed(mSnapshotWriter, SNAPSHOT_DELAY_MS);
+            mSnapshotPending = true;
+        }
+    }
+
+    /**
+     * Writes all apps to the snapshot file now. The file is replaced in one
+     * rename, so a crash leaves either the old or the new snapshot.
+     */
+    public void saveSnapshot() {
+        if (mSnapshotFile == null) {
+            return;
+        }
+        AppRow[] rows;
+        long nextId;
+        mLock.readLock().lock();
+        try {
+            rows = new AppRow[mRows.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = mRows.valueAt(i);
+            }
+            nextId = mNextId;
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        File tmp = new File(mSnapshotFile.getPath() + ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(nextId);
+                out.writeInt(rows.length);
+                for (AppRow row : rows) {
+                    out.writeLong(row.id);
+                    writeString(out, row.name);
+                    writeString(out, row.pkg);
+                    writeString(out, row.vendor);
+                    writeString(out, row.description);
+                    out.writeLong(row.launchCount);
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(mSnapshotFile)) {
+                throw new IOException("Could not rename " + tmp + " to " + mSnapshotFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save snapshot", e);
+            tmp.delete();
+        }
+    }
+
+    private void loadSnapshot() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mSnapshotFile)));
+            try {
+                int version = in.readInt() == SNAPSHOT_MAGIC ? in.readInt() : 0;
+                if (version != SNAPSHOT_VERSION && version != SNAPSHOT_VERSION_NO_LAUNCH_COUNT) {
+                    Log.w(TAG, "Ignoring snapshot in unknown format: " + mSnapshotFile);
+                    return;
+                }
+                long nextId = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long id = in.readLong();
+                    String name = readString(in);
+                    String pkg = readString(in);
+                    String vendor = readString(in);
+                    String description = readString(in);
+                    long launchCount = version == SNAPSHOT_VERSION ? in.readLong() : 0;
+                    add(new AppRow(id, name, pkg, vendor, description, launchCount));
+                }
+                mNextId = nextId;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // first run, nothing saved yet
+        } catch (IOException e) {
+            Log.w(TAG, "Could not load snapshot, starting empty", e);
+            mRows.clear();
+            mByPackage.clear();
+            mByVendor.clear();
+            mByLaunchCount.clear();
+            mNextId = 1;
+        }
+    }
+
+    // unlike writeUTF, not limited to 64K
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
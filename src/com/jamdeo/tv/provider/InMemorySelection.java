@@ -0,0 +1,489 @@
+package com.jamdeo.tv.provider;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Evaluates the subset of SQL that clients pass as selections and sort orders,
+ * for storage engines that do not sit on SQLite. Supported are comparisons
+ * (=, ==, !=, <>, <, <=, >, >=, LIKE, IS [NOT] NULL) between public columns,
+ * ? arguments and literals, combined with AND, OR, NOT and parentheses, and
+ * comma separated "column [ASC|DESC]" sort orders. Anything else is rejected
+ * with an IllegalArgumentException.
+ */
+class InMemorySelection {
+
+    /** A row as seen by selections: the value of each public column. */
+    interface Row {
+        Object get(String column);
+    }
+
+    /** A parsed selection. */
+    abstract static class Expr {
+        abstract boolean matches(Row row);
+
+        /**
+         * Returns the values that the column must be equal to, one of which any
+         * matching row has, or null if the selection does not narrow the column.
+         */
+        List<Object> equalValues(String column) {
+            return null;
+        }
+    }
+
+    private static final class Comparison extends Expr {
+        final Operand left;
+        final String op;
+        final Operand right;
+
+        Comparison(Operand left, String op, Operand right) {
+            this.left = left;
+            this.op = op;
+            this.right = right;
+        }
+
+        @Override
+        boolean matches(Row row) {
+            Object a = left.value(row);
+            if (op.equals("IS NULL")) {
+                return a == null;
+            } else if (op.equals("IS NOT NULL")) {
+                return a != null;
+            }
+            Object b = right.value(row);
+            if (a == null || b == null) {
+                return false;
+            }
+            if (op.equals("LIKE")) {
+                return like(a.toString(), b.toString());
+            }
+            int cmp = compare(a, b);
+            if (op.equals("=")) {
+                return cmp == 0;
+            } else if (op.equals("!=")) {
+                return cmp != 0;
+            } else if (op.equals("<")) {
+                return cmp < 0;
+            } else if (op.equals("<=")) {
+                return cmp <= 0;
+            } else if (op.equals(">")) {
+                return cmp > 0;
+            }
+            return cmp >= 0;
+        }
+
+        @Override
+        List<Object> equalValues(String column) {
+            if (!op.equals("=")) {
+                return null;
+            }
+            Object value = null;
+            if (column.equals(left.column) && right.column == null) {
+                value = right.constant;
+            } else if (column.equals(right.column) && left.column == null) {
+                value = left.constant;
+            }
+            if (value == null) {
+                return null;
+            }
+            List<Object> values = new ArrayList<Object>(1);
+            values.add(coerce(column, value));
+            return values;
+        }
+    }
+
+    private static final class And extends Expr {
+        final Expr left;
+        final Expr right;
+
+        And(Expr left, Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean matches(Row row) {
+            return left.matches(row) && right.matches(row);
+        }
+
+        @Override
+        List<Object> equalValues(String column) {
+            List<Object> a = left.equalValues(column);
+            List<Object> b = right.equalValues(column);
+            if (a == null) {
+                return b;
+            }
+            return b == null || a.size() <= b.size() ? a : b;
+        }
+    }
+
+    private static final class Or extends Expr {
+        final Expr left;
+        final Expr right;
+
+        Or(Expr left, Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean matches(Row row) {
+            return left.matches(row) || right.matches(row);
+        }
+
+        @Override
+        List<Object> equalValues(String column) {
+            List<Object> a = left.equalValues(column);
+            List<Object> b = right.equalValues(column);
+            if (a == null || b == null) {
+                return null;
+            }
+            List<Object> values = new ArrayList<Object>(a);
+            values.addAll(b);
+            return values;
+        }
+    }
+
+    private static final class Not extends Expr {
+        final Expr expr;
+
+        Not(Expr expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        boolean matches(Row row) {
+            return !expr.matches(row);
+        }
+    }
+
+    // a column reference or a constant
+    private static final class Operand {
+        final String column;
+        final Object constant;
+
+        Operand(String column, Object constant) {
+            this.column = column;
+            this.constant = constant;
+        }
+
+        Object value(Row row) {
+            return column != null ? row.get(column) : constant;
+        }
+    }
+
+    private final String mSql;
+    private final String[] mArgs;
+    private final List<String> mTokens = new ArrayList<String>();
+    private int mPos;
+    private int mNextArg;
+
+    private InMemorySelection(String sql, String[] args) {
+        mSql = sql;
+        mArgs = args;
+    }
+
+    /**
+     * Parses a selection, binding its ? placeholders to the arguments.
+     *
+     * @return the parsed selection, or null if it is empty and matches every row.
+     */
+    static Expr parse(String selection, String[] selectionArgs) {
+        if (selection == null || selection.trim().length() == 0) {
+            return null;
+        }
+        InMemorySelection parser = new InMemorySelection(selection, selectionArgs);
+        parser.tokenize();
+        Expr expr = parser.parseOr();
+        if (parser.mPos != parser.mTokens.size()) {
+            throw parser.unsupported();
+        }
+        return expr;
+    }
+
+    /**
+     * Parses a sort order into a comparator, or returns null if it is empty.
+     */
+    static Comparator<Row> parseSortOrder(String sortOrder) {
+        if (sortOrder == null || sortOrder.trim().length() == 0) {
+            return null;
+        }
+        String[] terms = sortOrder.split(",");
+        final String[] columns = new String[terms.length];
+        final boolean[] descending = new boolean[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            String[] words = terms[i].trim().split("\\s+");
+            if (words.length > 2 || !isColumn(words[0])) {
+                throw new IllegalArgumentException("Unsupported sort order: " + sortOrder);
+            }
+            columns[i] = words[0];
+            if (words.length == 2) {
+                String direction = words[1].toUpperCase(Locale.ROOT);
+                if (direction.equals("DESC")) {
+                    descending[i] = true;
+                } else if (!direction.equals("ASC")) {
+                    throw new IllegalArgumentException("Unsupported sort order: " + sortOrder);
+                }
+            }
+        }
+        return new Comparator<Row>() {
+            public int compare(Row a, Row b) {
+                for (int i = 0; i < columns.length; i++) {
+                    Object x = a.get(columns[i]);
+                    Object y = b.get(columns[i]);
+                    // nulls sort first, as in SQLite
+                    int cmp = x == null ? (y == null ? 0 : -1)
+                        : y == null ? 1 : InMemorySelection.compare(x, y);
+                    if (cmp != 0) {
+                        return descending[i] ? -cmp : cmp;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    private static boolean isColumn(String name) {
+        for (String column : AppsTable.PUBLIC_COLUMNS) {
+            if (column.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Converts a constant to the type stored in the column: _id and launch_count
+    // hold integers, the others hold text.
+    private static Object coerce(String column, Object value) {
+        if (AppsTable.COLUMN_ID.equals(column) || AppsTable.COLUMN_LAUNCH_COUNT.equals(column)) {
+            if (value instanceof Long) {
+                return value;
+            }
+            try {
+                return Long.valueOf(value.toString().trim());
+            } catch (NumberFormatException e) {
+                return value;
+            }
+        }
+        return value.toString();
+    }
+
+    private static int compare(Object a, Object b) {
+        if (a instanceof Long && !(b instanceof Long)) {
+            b = coerce(AppsTable.COLUMN_ID, b);
+        } else if (b instanceof Long && !(a instanceof Long)) {
+            a = coerce(AppsTable.COLUMN_ID, a);
+        }
+        if (a instanceof Long && b instanceof Long) {
+            return ((Long) a).compareTo((Long) b);
+        }
+        // as in SQLite, numbers sort before text
+        if (a instanceof Long) {
+            return -1;
+        } else if (b instanceof Long) {
+            return 1;
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    // SQLite LIKE: % and _ wildcards, ASCII letters compared without case.
+    // Matches greedily and only ever backtracks to the last %, so a pattern
+    // with many % costs no more than one pass over the value per %.
+    private static boolean like(String value, String pattern) {
+        int v = 0;
+        int p = 0;
+        // pattern index after the last %, and the value index it was tried at
+        int star = -1;
+        int mark = 0;
+        while (v < value.length()) {
+            if (p < pattern.length()) {
+                char c = pattern.charAt(p);
+                if (c == '%') {
+                    // consecutive % collapse into one
+                    star = ++p;
+                    mark = v;
+                    continue;
+                }
+                if (c == '_' || foldAscii(c) == foldAscii(value.charAt(v))) {
+                    v++;
+                    p++;
+                    continue;
+                }
+            }
+            if (star < 0) {
+                return false;
+            }
+            // let the last % take one more char and try the rest again
+            p = star;
+            v = ++mark;
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '%') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private static char foldAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private void tokenize() {
+        int i = 0;
+        int n = mSql.length();
+        while (i < n) {
+            char c = mSql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                // quoted text, '' stands for a single quote
+                StringBuilder sb = new StringBuilder("'");
+                i++;
+                while (true) {
+                    if (i >= n) {
+                        throw unsupported();
+                    }
+                    char q = mSql.charAt(i++);
+                    if (q == '\'') {
+                        if (i < n && mSql.charAt(i) == '\'') {
+                            sb.append('\'');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        sb.append(q);
+                    }
+                }
+                mTokens.add(sb.toString());
+            } else if (c == '(' || c == ')' || c == '?') {
+                mTokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '=' || c == '!' || c == '<' || c == '>') {
+                int start = i++;
+                if (i < n && (mSql.charAt(i) == '=' || (c == '<' && mSql.charAt(i) == '>'))) {
+                    i++;
+                }
+                String op = mSql.substring(start, i);
+                if (op.equals("!")) {
+                    throw unsupported();
+                }
+                mTokens.add(op.equals("==") ? "=" : op.equals("<>") ? "!=" : op);
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.') {
+                int start = i;
+                while (i < n && (Character.isLetterOrDigit(mSql.charAt(i))
+                        || mSql.charAt(i) == '_' || mSql.charAt(i) == '.'
+                        || (i == start && mSql.charAt(i) == '-'))) {
+                    i++;
+                }
+                mTokens.add(mSql.substring(start, i));
+            } else {
+                throw unsupported();
+            }
+        }
+    }
+
+    private IllegalArgumentException unsupported() {
+        return new IllegalArgumentException("Unsupported selection for in-memory storage: "
+            + mSql);
+    }
+
+    private String peek() {
+        return mPos < mTokens.size() ? mTokens.get(mPos) : null;
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        String token = peek();
+        if (token != null && token.equalsIgnoreCase(keyword)) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private String next() {
+        if (mPos >= mTokens.size()) {
+            throw unsupported();
+        }
+        return mTokens.get(mPos++);
+    }
+
+    private Expr parseOr() {
+        Expr expr = parseAnd();
+        while (acceptKeyword("OR")) {
+            expr = new Or(expr, parseAnd());
+        }
+        return expr;
+    }
+
+    private Expr parseAnd() {
+        Expr expr = parseNot();
+        while (acceptKeyword("AND")) {
+            expr = new And(expr, parseNot());
+        }
+        return expr;
+    }
+
+    private Expr parseNot() {
+        if (acceptKeyword("NOT")) {
+            return new Not(parseNot());
+        }
+        if ("(".equals(peek())) {
+            mPos++;
+            Expr expr = parseOr();
+            if (!")".equals(next())) {
+                throw unsupported();
+            }
+            return expr;
+        }
+        return parseComparison();
+    }
+
+    private Expr parseComparison() {
+        Operand left = parseOperand();
+        if (acceptKeyword("IS")) {
+            boolean not = acceptKeyword("NOT");
+            if (!acceptKeyword("NULL")) {
+                throw unsupported();
+            }
+            return new Comparison(left, not ? "IS NOT NULL" : "IS NULL", null);
+        }
+        boolean not = acceptKeyword("NOT");
+        String op;
+        if (acceptKeyword("LIKE")) {
+            op = "LIKE";
+        } else if (not) {
+            throw unsupported();
+        } else {
+            op = next();
+            if (!op.equals("=") && !op.equals("!=") && !op.equals("<") && !op.equals("<=")
+                    && !op.equals(">") && !op.equals(">=")) {
+                throw unsupported();
+            }
+        }
+        Expr expr = new Comparison(left, op, parseOperand());
+        return not ? new Not(expr) : expr;
+    }
+
+    private Operand parseOperand() {
+        String token = next();
+        if (token.equals("?")) {
+            if (mArgs == null || mNextArg >= mArgs.length) {
+                throw new IllegalArgumentException("Too few selection arguments for: " + mSql);
+            }
+            return new Operand(null, mArgs[mNextArg++]);
+        }
+        if (token.startsWith("'")) {
+            return new Operand(null, token.substring(1));
+        }
+        if (isColumn(token)) {
+            return new Operand(token, null);
+        }
+        try {
+            return new Operand(null, Long.valueOf(token));
+        } catch (NumberFormatException e) {
+            throw unsupported();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.jamdeo.tv.provider;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts app launches in memory and hands them to a {@link Sink} in batches,
+ * so that a launch costs the caller an atomic increment of a striped counter
+ * instead of a write to a hot row. Counts not yet flushed are lost if the process dies.
+ */
+class LaunchCounter {
+    private static final String TAG = "LaunchCounter";
+
+    // delay between the first launch after a flush and the flush that writes it
+    static final long FLUSH_DELAY_MS = 10 * 1000;
+
+    // Each _id counts its launches in this many cells, picked by thread, so that
+    // binder threads launching the same app rarely CAS the same cell. A flush
+    // adds the cells up.
+    private static final int STRIPES = 4;
+    // longs between two cells, so that each cell has a cache line of its own
+    private static final int CELL_PADDING = 8;
+
+    // _ids with launches pending at which a flush is run at once, so that a caller
+    // launching many different _ids cannot grow the map until the next flush
+    static final int MAX_PENDING_IDS = 256;
+
+    // value of a cell taken by a flush, which no launch may add to any more
+    private static final long DRAINED = Long.MIN_VALUE;
+
+    /** Receives the launches counted since the last flush. */
+    interface Sink {
+        void addLaunchCounts(long[] ids, long[] counts);
+    }
+
+    private final Sink mSink;
+
+    // The cells of each _id launched since the last flush. The flush takes each
+    // cell by setting it to DRAINED and removes the _id; a launch that finds a
+    // drained cell puts new cells in place of the old ones.
+    private final ConcurrentHashMap<Long, AtomicLongArray> mPending =
+        new ConcurrentHashMap<Long, AtomicLongArray>();
+
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    // held while a flush drains and writes, but never by a launch
+    private final Object mFlushLock = new Object();
+    private Handler mHandler;
+
+    private final Runnable mFlusher = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    LaunchCounter(Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Counts one launch of the app, to be written by the next flush.
+     */
+    void recordLaunch(long id) {
+        if (add(id, 1) && mPending.size() > MAX_PENDING_IDS) {
+            flushSoon();
+        } else if (mFlushScheduled.compareAndSet(false, true)) {
+            getHandler().postDelayed(mFlusher, FLUSH_DELAY_MS);
+        }
+    }
+
+    // Adds launches to the _id's cells. Returns whether the cells are new.
+    private boolean add(long id, long launches) {
+        int cell = (int) (Thread.currentThread().getId() % STRIPES) * CELL_PADDING;
+        boolean created = false;
+        while (true) {
+            AtomicLongArray cells = mPending.get(id);
+            if (cells == null) {
+                AtomicLongArray fresh = new AtomicLongArray(STRIPES * CELL_PADDING);
+                cells = mPending.putIfAbsent(id, fresh);
+                if (cells == null) {
+                    cells = fresh;
+                    created = true;
+                }
+            }
+            long count = cells.get(cell);
+            if (count == DRAINED) {
+                // taken by a flush that has not removed it yet
+                mPending.remove(id, cells);
+                continue;
+            }
+            if (cells.compareAndSet(cell, count, count + launches)) {
+                return created;
+            }
+        }
+    }
+
+    private void flushSoon() {
+        mFlushScheduled.set(true);
+        Handler handler = getHandler();
+        handler.removeCallbacks(mFlusher);
+        handler.post(mFlusher);
+    }
+
+    /**
+     * Hands every launch counted so far to the sink now. Counts the sink fails
+     * to take are kept for the next flush. Returns only once a flush already
+     * running on another thread is done too.
+     */
+    void flush() {
+        synchronized (mFlushLock) {
+            // launches from here on schedule another flush
+            mFlushScheduled.set(false);
+
+            ArrayList<Long> ids = new ArrayList<Long>();
+            ArrayList<Long> counts = new ArrayList<Long>();
+            for (Map.Entry<Long, AtomicLongArray> entry : mPending.entrySet()) {
+                AtomicLongArray cells = entry.getValue();
+                long count = 0;
+                for (int i = 0; i < STRIPES; i++) {
+                    count += cells.getAndSet(i * CELL_PADDING, DRAINED);
+                }
+                mPending.remove(entry.getKey(), cells);
+                if (count > 0) {
+                    ids.add(entry.getKey());
+                    counts.add(count);
+                }
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+
+            long[] idArray = new long[ids.size()];
+            long[] countArray = new long[ids.size()];
+            for (int i = 0; i < idArray.length; i++) {
+                idArray[i] = ids.get(i);
+                countArray[i] = counts.get(i);
+            }
+            try {
+                mSink.addLaunchCounts(idArray, countArray);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not write " + idArray.length
+                    + " launch counts, retrying later", e);
+                for (int i = 0; i < idArray.length; i++) {
+                    add(idArray[i], countArray[i]);
+                }
+                if (mFlushScheduled.compareAndSet(false, true)) {
+                    getHandler().postDelayed(mFlusher, FLUSH_DELAY_MS);
+                }
+            }
+        }
+    }
+
+    private synchronized Handler getHandler() {
+        if (mHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        return mHandler;
+    }
+}
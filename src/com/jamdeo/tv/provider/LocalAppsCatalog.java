@@ -0,0 +1,45 @@
+package com.jamdeo.tv.provider;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.Context;
+
+import java.util.List;
+
+/**
+ * Fast path to the hosted apps for components that run in the provider's own
+ * process. Instead of a cursor per call, whose CursorWindow holds a copy of
+ * every row, callers get the storage engine's immutable rows directly. The
+ * SQLite engine still reads them through one cursor after each write, but
+ * not after launch count flushes. The list is shared between callers and
+ * stays valid, unchanged, after later writes.
+ *
+ * Callers in other processes get null and must use
+ * {@link HostedApplicationsProvider#CONTENT_URI} as before.
+ */
+public final class LocalAppsCatalog {
+
+    private LocalAppsCatalog() {
+    }
+
+    /**
+     * @return every hosted app in _id order, or null if the provider does not
+     *         run in the calling process.
+     */
+    public static List<HostedApp> getApps(Context context) {
+        ContentProviderClient client = context.getContentResolver()
+            .acquireContentProviderClient(HostedApplicationsProvider.CONTENT_URI);
+        if (client == null) {
+            return null;
+        }
+        try {
+            ContentProvider provider = client.getLocalContentProvider();
+            if (provider instanceof HostedApplicationsProvider) {
+                return ((HostedApplicationsProvider) provider).getApps();
+            }
+            return null;
+        } finally {
+            client.release();
+        }
+    }
+}
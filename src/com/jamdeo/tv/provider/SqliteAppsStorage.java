@@ -0,0 +1,432 @@
+package com.jamdeo.tv.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The default storage engine, keeping the apps in appstable.db.
+ */
+public class SqliteAppsStorage implements AppsStorage {
+    // database
+    private final AppsDatabaseHelper mDb;
+
+    // app names for suggestions, built on first use and then kept in step
+    // with every write while the write transaction is held
+    private volatile AppNameTrie mNameTrie;
+    private final Object mNameTrieLock = new Object();
+
+    // Every row in _id order for in-process readers, read on first use and
+    // dropped after every write, except that launch count flushes patch it.
+    // A reader only keeps what it read if no write began or ended meanwhile.
+    private final Object mAppsLock = new Object();
+    private volatile List<HostedApp> mApps;
+    // bumped when a write begins and when it ends
+    private long mAppsGeneration;
+    // writes between beginAppsChange() and endAppsChange()
+    private int mAppsChanging;
+    // generation at which mApps was read
+    private long mAppsReadAt;
+    // reads raced by writers before getApps() holds writers off
+    private static final int MAX_UNLOCKED_READS = 2;
+
+    // The public columns, in the order returned for a null projection.
+    // The vendor name comes from the joined vendors table.
+    private static final HashMap<String, String> sAppsProjectionMap =
+        new LinkedHashMap<String, String>();
+    static {
+        for (String column : AppsTable.PUBLIC_COLUMNS) {
+            sAppsProjectionMap.put(column, column);
+        }
+    }
+
+    // Walks apps_launch_count_index backwards; rows with equal counts come
+    // out in descending rowid order, which the index already holds.
+    private static final String TOP_ORDER = AppsTable.COLUMN_LAUNCH_COUNT + " DESC, "
+        + AppsTable.COLUMN_ID + " DESC";
+
+    private static final String ADD_LAUNCH_COUNT = "UPDATE " + AppsTable.TABLE_NAME
+        + " SET " + AppsTable.COLUMN_LAUNCH_COUNT + " = " + AppsTable.COLUMN_LAUNCH_COUNT
+        + " + ? WHERE " + AppsTable.COLUMN_ID + " = ?";
+
+    public SqliteAppsStorage(Context context) {
+        mDb = new AppsDatabaseHelper(context);
+    }
+
+    public AppsDatabaseHelper getOpenHelper() {
+        return mDb;
+    }
+
+    public Cursor query(long id, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        // keep database maintenance out of the way of reads
+        mDb.getMaintenance().noteRead();
+
+        // Uisng SQLiteQueryBuilder instead of query() method
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+
+        // Set the table, joining in the vendor names
+        queryBuilder.setTables(AppsTable.JOINED_TABLES);
+        queryBuilder.setProjectionMap(sAppsProjectionMap);
+
+        if (id != ALL_ROWS) {
+            // adding the ID to the original query
+            queryBuilder.appendWhere(AppsTable.COLUMN_ID + "=" + id);
+        }
+
+        SQLiteDatabase db = mDb.getWritableDatabase();
+        return queryBuilder.query(db, projection, selection,
+            selectionArgs, null, null, sortOrder);
+    }
+
+    public long insert(ContentValues values) {
+        SQLiteDatabase sqlDB = mDb.getWritableDatabase();
+        long id;
+        sqlDB.beginTransaction();
+        long change = beginAppsChange();
+        try {
+            id = AppsTable.insert(sqlDB, values);
+            synchronized (mNameTrieLock) {
+                if (mNameTrie != null) {
+                    mNameTrie.put(id, values.getAsString(AppsTable.COLUMN_NAME));
+                }
+            }
+            sqlDB.setTransactionSuccessful();
+        } finally {
+            try {
+                sqlDB.endTransaction();
+            } finally {
+                endAppsChange(change, null, null);
+            }
+        }
+        mDb.getMaintenance().noteWrite(1);
+        return id;
+    }
+
+    public int update(long id, ContentValues values, String selection,
+            String[] selectionArgs) {
+        SQLiteDatabase sqlDB = mDb.getWritableDatabase();
+        int rowsUpdated = 0;
+        String where = appsWhere(id, selection);
+        String[] whereArgs = TextUtils.isEmpty(selection) ? null : selectionArgs;
+        sqlDB.beginTransaction();
+        long change = beginAppsChange();
+        try {
+            ContentValues resolved = AppsTable.resolveVendor(sqlDB, values);
+            synchronized (mNameTrieLock) {
+                // every matching row gets the same new name and _id, if given
+                Long newId = values.getAsLong(AppsTable.COLUMN_ID);
+                boolean renames = values.containsKey(AppsTable.COLUMN_NAME);
+                long[] ids = null;
+                String[] names = null;
+                if (mNameTrie != null && (renames || newId != null)) {
+                    Cursor c = sqlDB.query(AppsTable.TABLE_NAME,
+                        new String[] { AppsTable.COLUMN_ID, AppsTable.COLUMN_NAME },
+                        where, whereArgs, null, null, null);
+                    try {
+                        ids = new long[c.getCount()];
+                        names = new String[ids.length];
+                        for (int i = 0; c.moveToNext(); i++) {
+                            ids[i] = c.getLong(0);
+                            names[i] = c.getString(1);
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+                rowsUpdated = sqlDB.update(AppsTable.TABLE_NAME, resolved, where, whereArgs);
+                if (ids != null) {
+                    for (int i = 0; i < ids.length; i++) {
+                        mNameTrie.remove(ids[i]);
+                        mNameTrie.put(newId != null ? newId : ids[i],
+                            renames ? values.getAsString(AppsTable.COLUMN_NAME) : names[i]);
+                    }
+                }
+            }
+            if (resolved != values) {
+                VendorsTable.deleteUnused(sqlDB);
+            }
+            sqlDB.setTransactionSuccessful();
+        } finally {
+            try {
+                sqlDB.endTransaction();
+            } finally {
+                endAppsChange(change, null, null);
+            }
+        }
+        mDb.getMaintenance().noteWrite(rowsUpdated);
+        return rowsUpdated;
+    }
+
+    public int delete(long id, String selection, String[] selectionArgs) {
+        SQLiteDatabase sqlDB = mDb.getWritableDatabase();
+        int rowsDeleted = 0;
+        String where = appsWhere(id, selection);
+        String[] whereArgs = TextUtils.isEmpty(selection) ? null : selectionArgs;
+        sqlDB.beginTransaction();
+        long change = beginAppsChange();
+        try {
+            synchronized (mNameTrieLock) {
+                long[] ids = mNameTrie != null ? queryIds(sqlDB, where, whereArgs) : null;
+                rowsDeleted = sqlDB.delete(AppsTable.TABLE_NAME, where, whereArgs);
+                if (ids != null) {
+                    for (long rowId : ids) {
+                        mNameTrie.remove(rowId);
+                    }
+                }
+            }
+            if (rowsDeleted > 0) {
+                VendorsTable.deleteUnused(sqlDB);
+            }
+            sqlDB.setTransactionSuccessful();
+        } finally {
+            try {
+                sqlDB.endTransaction();
+            } finally {
+                endAppsChange(change, null, null);
+            }
+        }
+        mDb.getMaintenance().noteWrite(rowsDeleted);
+        return rowsDeleted;
+    }
+
+    public List<AppNameTrie.Match> suggest(String prefix, int limit) {
+        return getNameTrie().findByPrefix(prefix, limit);
+    }
+
+    public Cursor queryTop(String[] projection, int n) {
+        mDb.getMaintenance().noteRead();
+
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(AppsTable.JOINED_TABLES);
+        queryBuilder.setProjectionMap(sAppsProjectionMap);
+
+        SQLiteDatabase db = mDb.getWritableDatabase();
+        return queryBuilder.query(db, projection, null, null, null, null, TOP_ORDER,
+            String.valueOf(n));
+    }
+
+    public void addLaunchCounts(long[] ids, long[] counts) {
+        SQLiteDatabase sqlDB = mDb.getWritableDatabase();
+        int rowsUpdated = 0;
+        boolean written = false;
+        sqlDB.beginTransaction();
+        long change = beginAppsChange();
+        try {
+            SQLiteStatement statement = sqlDB.compileStatement(ADD_LAUNCH_COUNT);
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    statement.bindLong(1, counts[i]);
+                    statement.bindLong(2, ids[i]);
+                    rowsUpdated += statement.executeUpdateDelete();
+                }
+            } finally {
+                statement.close();
+            }
+            sqlDB.setTransactionSuccessful();
+            written = true;
+        } finally {
+            try {
+                sqlDB.endTransaction();
+            } finally {
+                // only the counts changed, so the list handed to readers is patched
+                // rather than read again
+                endAppsChange(change, written ? ids : null, counts);
+            }
+        }
+        mDb.getMaintenance().noteWrite(rowsUpdated);
+    }
+
+    public List<HostedApp> getApps() {
+        List<HostedApp> cached = mApps;
+        if (cached != null) {
+            return cached;
+        }
+        SQLiteDatabase db = mDb.getWritableDatabase();
+        for (int attempt = 0; ; attempt++) {
+            long generation;
+            synchronized (mAppsLock) {
+                if (mApps != null) {
+                    return mApps;
+                }
+                generation = mAppsGeneration;
+            }
+            // Reads without a transaction so that other clients' queries are not
+            // held up. If writers keep racing the read, holds them off for one.
+            boolean locked = attempt >= MAX_UNLOCKED_READS;
+            if (locked) {
+                db.beginTransaction();
+            }
+            try {
+                List<HostedApp> apps = readApps(db);
+                synchronized (mAppsLock) {
+                    if (locked || (mAppsGeneration == generation && mAppsChanging == 0)) {
+                        mApps = apps;
+                        mAppsReadAt = mAppsGeneration;
+                        return apps;
+                    }
+                }
+            } finally {
+                if (locked) {
+                    db.endTransaction();
+                }
+            }
+        }
+    }
+
+    // The framework has no multi-row read without a cursor, so the rows pass
+    // through one CursorWindow and are decoded into AppRow objects once per
+    // read; every getApps() until the next write shares them.
+    private static List<HostedApp> readApps(SQLiteDatabase db) {
+        Cursor c = db.query(AppsTable.JOINED_TABLES, AppsTable.PUBLIC_COLUMNS,
+            null, null, null, null, AppsTable.COLUMN_ID);
+        try {
+            ArrayList<HostedApp> rows = new ArrayList<HostedApp>(c.getCount());
+            while (c.moveToNext()) {
+                rows.add(new AppRow(c.getLong(0), c.getString(1), c.getString(2),
+                    c.getString(3), c.getString(4), c.getLong(5)));
+            }
+            return Collections.unmodifiableList(rows);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Called by every write once its transaction has begun.
+     *
+     * @return the generation to pass to {@link #endAppsChange}.
+     */
+    private long beginAppsChange() {
+        synchronized (mAppsLock) {
+            mAppsChanging++;
+            return ++mAppsGeneration;
+        }
+    }
+
+    /**
+     * Called by every write after its transaction has ended. Drops the list of
+     * apps, or, if ids is not null, adds the launch counts to it. A list read
+     * after the write began may already hold the counts, so it is dropped too.
+     */
+    private void endAppsChange(long change, long[] ids, long[] counts) {
+        synchronized (mAppsLock) {
+            mAppsChanging--;
+            mAppsGeneration++;
+            if (mApps != null && ids != null && mAppsReadAt < change) {
+                mApps = withLaunchCounts(mApps, ids, counts);
+            } else {
+                mApps = null;
+            }
+        }
+    }
+
+    // Returns a copy of the apps, in _id order, with counts[i] added to the
+    // launch count of the app with _id ids[i]. Other rows are shared.
+    private static List<HostedApp> withLaunchCounts(List<HostedApp> apps, long[] ids,
+            long[] counts) {
+        HostedApp[] rows = apps.toArray(new HostedApp[apps.size()]);
+        for (int i = 0; i < ids.length; i++) {
+            int lo = 0;
+            int hi = rows.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long id = rows[mid].getId();
+                if (id < ids[i]) {
+                    lo = mid + 1;
+                } else if (id > ids[i]) {
+                    hi = mid - 1;
+                } else {
+                    AppRow row = (AppRow) rows[mid];
+                    rows[mid] = new AppRow(row.id, row.name, row.pkg, row.vendor,
+                        row.description, row.launchCount + counts[i]);
+                    break;
+                }
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(rows));
+    }
+
+    /**
+     * Returns the where clause on the apps table for a write.
+     */
+    private static String appsWhere(long id, String selection) {
+        if (id == ALL_ROWS) {
+            return joinedSelection(selection);
+        }
+        if (TextUtils.isEmpty(selection)) {
+            return AppsTable.COLUMN_ID + "=" + id;
+        }
+        return AppsTable.COLUMN_ID + "=" + id + " and " + joinedSelection(selection);
+    }
+
+    /**
+     * Rewrites a client selection, which may refer to the vendor column, so that
+     * it can be used against the apps table alone.
+     */
+    private static String joinedSelection(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return selection;
+        }
+        return AppsTable.COLUMN_ID + " IN (SELECT " + AppsTable.COLUMN_ID
+            + " FROM " + AppsTable.JOINED_TABLES + " WHERE (" + selection + "))";
+    }
+
+    private static long[] queryIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(AppsTable.TABLE_NAME, new String[] { AppsTable.COLUMN_ID },
+            where, whereArgs, null, null, null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    private AppNameTrie getNameTrie() {
+        AppNameTrie trie = mNameTrie;
+        if (trie != null) {
+            return trie;
+        }
+        // take the database lock before the trie lock, in the same order as the writers
+        SQLiteDatabase db = mDb.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            synchronized (mNameTrieLock) {
+                if (mNameTrie == null) {
+                    trie = new AppNameTrie();
+                    Cursor c = db.query(AppsTable.TABLE_NAME,
+                        new String[] { AppsTable.COLUMN_ID, AppsTable.COLUMN_NAME },
+                        null, null, null, null, null);
+                    try {
+                        while (c.moveToNext()) {
+                            trie.put(c.getLong(0), c.getString(1));
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    mNameTrie = trie;
+                }
+                trie = mNameTrie;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return trie;
+    }
+}
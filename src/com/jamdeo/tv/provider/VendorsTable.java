@@ -0,0 +1,55 @@
+package com.jamdeo.tv.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+public class VendorsTable {
+
+    // Database table
+    // Column names are distinct from the ones in AppsTable so that the
+    // two tables can be joined without qualifying the client's selection.
+    public static final String TABLE_NAME = "vendors";
+    public static final String COLUMN_ID = AppsTable.COLUMN_VENDOR_ID;
+    public static final String COLUMN_NAME = AppsTable.COLUMN_VENDOR;
+
+    // Database creation SQL statement
+    private static final String DATABASE_CREATE = "create table "
+            + TABLE_NAME
+            + "("
+            + COLUMN_ID + " integer primary key autoincrement, "
+            + COLUMN_NAME + " text not null unique"
+            + ");";
+
+    public static void onCreate(SQLiteDatabase database) {
+        database.execSQL(DATABASE_CREATE);
+    }
+
+    /**
+     * Looks up the id of the given vendor, adding a new row for it if the
+     * vendor has not been seen before.
+     */
+    public static long getOrInsertVendorId(SQLiteDatabase database, String vendor) {
+        Cursor c = database.query(TABLE_NAME, new String[] { COLUMN_ID },
+                COLUMN_NAME + "=?", new String[] { vendor }, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                return c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, vendor);
+        return database.insertOrThrow(TABLE_NAME, null, values);
+    }
+
+    /**
+     * Removes vendors that are no longer referenced by any app.
+     */
+    public static int deleteUnused(SQLiteDatabase database) {
+        return database.delete(TABLE_NAME, COLUMN_ID + " NOT IN (SELECT "
+                + AppsTable.COLUMN_VENDOR_ID + " FROM " + AppsTable.TABLE_NAME + ")",
+                null);
+    }
+}
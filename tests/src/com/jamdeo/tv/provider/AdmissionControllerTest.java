@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jamdeo.tv.provider;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the admission control in front of the provider's calls.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.jamdeo.tv.provider.AdmissionControllerTest \
+ *         -w com.jamdeo.tv.provider.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+public class AdmissionControllerTest extends TestCase {
+
+    private static final int LAUNCHER_UID = 10001;
+    private static final int SYNC_UID = 10002;
+    private static final int EXPORT_UID = 10003;
+    private static final int BACKUP_UID = 10004;
+
+    // How long a waiting call is given to show that it is really blocked.
+    private static final long BLOCKED_MS = 200;
+    private static final long JOIN_MS = 5000;
+
+    // Calls admitted by the waiter threads, in the order they got in.
+    private final List<String> mAdmitted = Collections.synchronizedList(new ArrayList<String>());
+
+    private Thread startWaiter(final AdmissionController admission, final String name,
+            final int uid, final boolean bulk) {
+        Thread thread = new Thread(name) {
+            @Override
+            public void run() {
+                AdmissionController.Ticket ticket;
+                try {
+                    ticket = admission.acquire(uid, bulk);
+                } catch (IllegalStateException e) {
+                    // rejected, which the test checks in the counters
+                    return;
+                }
+                mAdmitted.add(name);
+                admission.release(ticket);
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForWaiting(AdmissionController admission, int uid, int waiting)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + JOIN_MS;
+        while (admission.getStats(uid).waiting != waiting) {
+            assertTrue("Timed out waiting for queued calls",
+                System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /*
+     * Tests that a caller cannot run more calls at once than its limit, while other
+     * callers still get in.
+     */
+    public void testPerCallerLimit() throws InterruptedException {
+        AdmissionController admission = new AdmissionController(4, 1, 2, 8, 8, JOIN_MS);
+
+        // Subtest 1.
+        // The first two calls of a caller run at once, the third waits.
+        AdmissionController.Ticket first = admission.acquire(SYNC_UID, false);
+        AdmissionController.Ticket second = admission.acquire(SYNC_UID, false);
+        Thread third = startWaiter(admission, "third", SYNC_UID, false);
+        waitForWaiting(admission, SYNC_UID, 1);
+        Thread.sleep(BLOCKED_MS);
+        assertTrue(mAdmitted.isEmpty());
+
+        // Subtest 2.
+        // Another caller is not held up by it.
+        AdmissionController.Ticket launcher = admission.acquire(LAUNCHER_UID, false);
+        admission.release(launcher);
+
+        // Subtest 3.
+        // Releasing one of the caller's calls lets the third in, and it is counted as queued.
+        admission.release(first);
+        third.join(JOIN_MS);
+        assertEquals(1, mAdmitted.size());
+        admission.release(second);
+
+        AdmissionController.CallerStats stats = admission.getStats(SYNC_UID);
+        assertEquals(3, stats.admitted);
+        assertEquals(1, stats.queued);
+        assertEquals(0, stats.rejected);
+        assertTrue(stats.maxWaitMs >= BLOCKED_MS);
+        assertEquals(1, admission.getStats(LAUNCHER_UID).admitted);
+        assertEquals(0, admission.getStats(LAUNCHER_UID).queued);
+    }
+
+    /*
+     * Tests that a small call waiting for a slot goes ahead of a bulk call that waited
+     * longer.
+     */
+    public void testSmallCallsFirst() throws InterruptedException {
+        AdmissionController admission = new AdmissionController(1, 1, 1, 8, 8, JOIN_MS);
+
+        AdmissionController.Ticket running = admission.acquire(SYNC_UID, true);
+        Thread bulk = startWaiter(admission, "bulk", SYNC_UID, true);
+        waitForWaiting(admission, SYNC_UID, 1);
+        Thread small = startWaiter(admission, "small", LAUNCHER_UID, false);
+        waitForWaiting(admission, LAUNCHER_UID, 1);
+
+        admission.release(running);
+        bulk.join(JOIN_MS);
+        small.join(JOIN_MS);
+        assertEquals(2, mAdmitted.size());
+        assertEquals("small", mAdmitted.get(0));
+        assertEquals("bulk", mAdmitted.get(1));
+    }
+
+    /*
+     * Tests that a bulk call which has waited half of the maximum wait goes ahead of
+     * a small call that came later, so that small calls cannot starve it.
+     */
+    public void testBulkAging() throws InterruptedException {
+        AdmissionController admission = new AdmissionController(1, 1, 2, 8, 8, JOIN_MS);
+
+        AdmissionController.Ticket running = admission.acquire(LAUNCHER_UID, false);
+        Thread bulk = startWaiter(admission, "bulk", SYNC_UID, true);
+        waitForWaiting(admission, SYNC_UID, 1);
+        Thread.sleep(JOIN_MS / 2 + BLOCKED_MS);
+        Thread small = startWaiter(admission, "small", EXPORT_UID, false);
+        waitForWaiting(admission, EXPORT_UID, 1);
+
+        admission.release(running);
+        bulk.join(JOIN_MS);
+        small.join(JOIN_MS);
+        assertEquals(2, mAdmitted.size());
+        assertEquals("bulk", mAdmitted.get(0));
+        assertEquals("small", mAdmitted.get(1));
+    }
+
+    /*
+     * Tests that only a few calls may wait over all callers, as each waiting call
+     * blocks a binder thread.
+     */
+    public void testWaitingLimit() throws InterruptedException {
+        AdmissionController admission = new AdmissionController(1, 1, 1, 1, 2, JOIN_MS);
+
+        // Subtest 1.
+        // With the slot taken and two calls of other callers waiting, a third caller is
+        // turned away at once.
+        AdmissionController.Ticket running = admission.acquire(LAUNCHER_UID, false);
+        Thread sync = startWaiter(admission, "sync", SYNC_UID, false);
+        waitForWaiting(admission, SYNC_UID, 1);
+        Thread export = startWaiter(admission, "export", EXPORT_UID, false);
+        waitForWaiting(admission, EXPORT_UID, 1);
+        try {
+            admission.acquire(BACKUP_UID, false);
+            fail("Expected the call to be rejected");
+        } catch (IllegalStateException e) {
+            // succeeded, so do nothing.
+        }
+        assertEquals(1, admission.getStats(BACKUP_UID).rejected);
+
+        // Subtest 2.
+        // The waiting calls still get in once the slot is free.
+        admission.release(running);
+        sync.join(JOIN_MS);
+        export.join(JOIN_MS);
+        assertEquals(2, mAdmitted.size());
+    }
+
+    /*
+     * Tests that calls are rejected once a caller has too many waiting, or one waits
+     * too long.
+     */
+    public void testRejection() throws InterruptedException {
+        AdmissionController admission = new AdmissionController(4, 1, 1, 1, 8, BLOCKED_MS);
+
+        // Subtest 1.
+        // With one call running and one waiting, the next call is turned away at once.
+        AdmissionController.Ticket running = admission.acquire(SYNC_UID, false);
+        Thread waiter = startWaiter(admission, "waiter", SYNC_UID, false);
+        waitForWaiting(admission, SYNC_UID, 1);
+        try {
+            admission.acquire(SYNC_UID, false);
+            fail("Expected the call to be rejected");
+        } catch (IllegalStateException e) {
+            // succeeded, so do nothing.
+        }
+        assertEquals(1, admission.getStats(SYNC_UID).rejected);
+
+        // Subtest 2.
+        // The waiting call gives up after the maximum wait.
+        waiter.join(JOIN_MS);
+        assertTrue(mAdmitted.isEmpty());
+        assertEquals(2, admission.getStats(SYNC_UID).rejected);
+        assertEquals(0, admission.getStats(SYNC_UID).waiting);
+
+        // Subtest 3.
+        // Once the running call is done, the caller gets in again.
+        admission.release(running);
+        admission.release(admission.acquire(SYNC_UID, false));
+        assertEquals(2, admission.getStats(SYNC_UID).admitted);
+    }
+}
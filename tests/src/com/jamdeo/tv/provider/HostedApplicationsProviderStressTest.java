@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jamdeo.tv.provider;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.test.IsolatedContext;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Drives the provider from several reader and writer threads at once, the way the
+ * launcher, app store, installer and sync agent do over binder threads, and checks
+ * that no update is lost, no row is seen half written and every write is notified.
+ * Besides their own rows, all writers rename and record launches of a few shared
+ * rows, whose launch counts must add up to every launch recorded.
+ * Throughput and latency percentiles per operation are written to the log under
+ * the HostedApplicationsProviderStressTest tag.
+ *
+ * Run it on an emulator, for example from a release build job, like this:
+ * <code>
+ * adb shell am instrument -e class com.jamdeo.tv.provider.HostedApplicationsProviderStressTest \
+ *         -e readers 6 -e writers 3 -e durationMs 10000 -e slotsPerWriter 40 \
+ *         -w com.jamdeo.tv.provider.tests/android.test.InstrumentationTestRunner
+ * </code>
+ * The -e arguments are optional and shown with their defaults. They are read on
+ * API 18 and later; older releases always use the defaults.
+ */
+public class HostedApplicationsProviderStressTest extends InstrumentationTestCase {
+    private static final String TAG = "HostedApplicationsProviderStressTest";
+    private static final String AUTHORITY = "com.jamdeo.tv.provider.hostedapps";
+    // prefix for the files of the provider under test
+    private static final String FILE_PREFIX = "stress.";
+
+    // defaults of the instrumentation arguments
+    private static final int DEFAULT_READERS = 6;
+    private static final int DEFAULT_WRITERS = 3;
+    private static final long DEFAULT_DURATION_MS = 10 * 1000;
+    // rows each writer keeps alive at most
+    private static final int DEFAULT_SLOTS_PER_WRITER = 40;
+    // how long a call may wait for admission before the provider rejects it
+    private static final long ADMISSION_WAIT_MS = 5000;
+
+    // rows every writer renames and records launches of
+    private static final int SHARED_ROWS = 4;
+
+    // Counts change notifications, which MockContentResolver would otherwise drop.
+    private static class CountingResolver extends MockContentResolver {
+        final AtomicInteger mNotifications = new AtomicInteger();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            // launch count flushes are notified too, but are not writes of the workers
+            if (uri.toString().startsWith(HostedApplicationsProvider.CONTENT_URI.toString())
+                    && !uri.equals(HostedApplicationsProvider.TOP_URI)) {
+                mNotifications.incrementAndGet();
+            }
+        }
+    }
+
+    // Latencies of one kind of operation, recorded by a single thread and merged later.
+    private static class OpStats {
+        final String mName;
+        long[] mNanos = new long[1024];
+        int mCount;
+
+        OpStats(String name) {
+            mName = name;
+        }
+
+        void record(long nanos) {
+            if (mCount == mNanos.length) {
+                mNanos = Arrays.copyOf(mNanos, mCount * 2);
+            }
+            mNanos[mCount++] = nanos;
+        }
+
+        void merge(OpStats other) {
+            for (int i = 0; i < other.mCount; i++) {
+                record(other.mNanos[i]);
+            }
+        }
+
+        String report(long durationMs) {
+            long[] sorted = Arrays.copyOf(mNanos, mCount);
+            Arrays.sort(sorted);
+            return String.format("%-10s %7d ops %8.1f ops/s  p50 %6dus  p99 %6dus"
+                + "  p99.9 %6dus  max %6dus", mName, mCount, mCount * 1000.0 / durationMs,
+                percentile(sorted, 0.5), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), mCount == 0 ? 0 : sorted[mCount - 1] / 1000);
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000;
+        }
+    }
+
+    private int mReaders;
+    private int mWriters;
+    private long mDurationMs;
+    private int mSlotsPerWriter;
+
+    private CountingResolver mResolver;
+    private HostedApplicationsProvider mProvider;
+    // the shared rows, owned by a writer number no Writer thread uses
+    private final long[] mSharedIds = new long[SHARED_ROWS];
+    private long mDeadline;
+    private final AtomicInteger mWrites = new AtomicInteger();
+    private final AtomicInteger mViolations = new AtomicInteger();
+    private final AtomicReference<String> mFirstViolation = new AtomicReference<String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Bundle arguments = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && getInstrumentation() instanceof InstrumentationTestRunner) {
+            arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+        }
+        mReaders = (int) argument(arguments, "readers", DEFAULT_READERS);
+        mWriters = (int) argument(arguments, "writers", DEFAULT_WRITERS);
+        mDurationMs = argument(arguments, "durationMs", DEFAULT_DURATION_MS);
+        mSlotsPerWriter = (int) argument(arguments, "slotsPerWriter", DEFAULT_SLOTS_PER_WRITER);
+        getContext().deleteDatabase(FILE_PREFIX + "appstable.db");
+    }
+
+    private static long argument(Bundle arguments, String name, long defaultValue) {
+        String value = arguments != null ? arguments.getString(name) : null;
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    private Context getContext() {
+        return getInstrumentation().getTargetContext();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(FILE_PREFIX + "appstable.db");
+        super.tearDown();
+    }
+
+    public void testSqliteStorage() throws Exception {
+        runStress("sqlite", null);
+    }
+
+    public void testInMemoryStorage() throws Exception {
+        runStress("memory", new InMemoryAppsStorage(null));
+    }
+
+    /*
+     * Runs the readers and writers against a fresh provider on the given engine, or on
+     * the provider's default engine if it is null, then checks the invariants.
+     */
+    private void runStress(String label, AppsStorage storage) throws Exception {
+        mResolver = new CountingResolver();
+        RenamingDelegatingContext fileContext = new RenamingDelegatingContext(
+            new MockContext(), getContext(), FILE_PREFIX);
+        mProvider = new HostedApplicationsProvider();
+        // The isolated context cannot check permissions, which record_launch does.
+        mProvider.attachInfo(new ContextWrapper(new IsolatedContext(mResolver, fileContext)) {
+            @Override
+            public void enforceCallingOrSelfPermission(String permission, String message) {
+                // granted
+            }
+        }, null);
+        if (storage != null) {
+            mProvider.setStorageForTest(storage);
+        }
+        // Every thread calls from the test's UID, which the shipped per-caller limits
+        // would hold to two calls at once. Let all of them run.
+        int threads = mReaders + mWriters;
+        mProvider.setAdmissionControllerForTest(
+            new AdmissionController(threads, threads, threads, threads, threads,
+                ADMISSION_WAIT_MS));
+        mResolver.addProvider(AUTHORITY, mProvider);
+
+        for (int i = 0; i < SHARED_ROWS; i++) {
+            mSharedIds[i] = ContentUris.parseId(mResolver.insert(
+                HostedApplicationsProvider.CONTENT_URI, rowValues(mWriters, i, 0)));
+        }
+        mWrites.set(0);
+        mResolver.mNotifications.set(0);
+
+        ArrayList<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < mWriters; i++) {
+            workers.add(new Writer(i));
+        }
+        for (int i = 0; i < mReaders; i++) {
+            workers.add(new Reader(i));
+        }
+        long start = System.currentTimeMillis();
+        mDeadline = start + mDurationMs;
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        long duration = System.currentTimeMillis() - start;
+
+        // Reports throughput and latency per operation type over all threads.
+        HashMap<String, OpStats> totals = new HashMap<String, OpStats>();
+        for (Worker worker : workers) {
+            for (OpStats stats : worker.mStats.values()) {
+                OpStats total = totals.get(stats.mName);
+                if (total == null) {
+                    total = new OpStats(stats.mName);
+                    totals.put(stats.mName, total);
+                }
+                total.merge(stats);
+            }
+        }
+        Log.i(TAG, label + ": " + mReaders + " readers, " + mWriters + " writers, "
+            + duration + "ms");
+        for (OpStats total : totals.values()) {
+            Log.i(TAG, label + ": " + total.report(duration));
+        }
+        AdmissionController.CallerStats admission =
+            mProvider.getAdmissionStatsForTest(Process.myUid());
+        Log.i(TAG, label + ": admission " + admission);
+        assertEquals("Calls rejected by admission control", 0, admission.rejected);
+
+        // No lost updates: every writer's rows hold exactly the last values it wrote.
+        for (Worker worker : workers) {
+            if (worker instanceof Writer) {
+                ((Writer) worker).verify();
+            }
+        }
+
+        // No lost launches: each shared row counts every launch recorded by any writer.
+        mProvider.flushLaunchCountsForTest();
+        for (int i = 0; i < SHARED_ROWS; i++) {
+            long launches = 0;
+            for (Worker worker : workers) {
+                if (worker instanceof Writer) {
+                    launches += ((Writer) worker).mLaunches[i];
+                }
+            }
+            Cursor cursor = mResolver.query(ContentUris.withAppendedId(
+                HostedApplicationsProvider.CONTENT_URI, mSharedIds[i]),
+                new String[] { AppsTable.COLUMN_LAUNCH_COUNT }, null, null, null);
+            try {
+                long counted = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+                if (counted != launches) {
+                    violation("Lost launches: shared row " + i + " counted " + counted
+                        + " of " + launches);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // Every write that returned was notified.
+        if (mResolver.mNotifications.get() != mWrites.get()) {
+            violation(mWrites.get() + " writes but " + mResolver.mNotifications.get()
+                + " notifications");
+        }
+
+        assertEquals(label + ": " + mFirstViolation.get(), 0, mViolations.get());
+    }
+
+    private void violation(String message) {
+        mViolations.incrementAndGet();
+        mFirstViolation.compareAndSet(null, message);
+        Log.e(TAG, message);
+    }
+
+    // Every row carries its writer, slot and version in its name, package and
+    // description, so a reader can tell a row that mixes two writes.
+    private static String token(int writer, int slot, int version) {
+        return "w" + writer + "s" + slot + "v" + version;
+    }
+
+    private static String packageName(int writer, int slot) {
+        return "com.stress.w" + writer + ".s" + slot;
+    }
+
+    private static ContentValues rowValues(int writer, int slot, int version) {
+        String token = token(writer, slot, version);
+        ContentValues values = new ContentValues();
+        values.put(AppsTable.COLUMN_NAME, token);
+        values.put(AppsTable.COLUMN_PACKAGE, packageName(writer, slot));
+        values.put(AppsTable.COLUMN_VENDOR, "vendor" + (slot % 4));
+        values.put(AppsTable.COLUMN_DESCRIPTION, token + " description");
+        return values;
+    }
+
+    private void checkRow(Cursor cursor) {
+        String name = cursor.getString(cursor.getColumnIndexOrThrow(AppsTable.COLUMN_NAME));
+        String pkg = cursor.getString(cursor.getColumnIndexOrThrow(AppsTable.COLUMN_PACKAGE));
+        String desc = cursor.getString(
+            cursor.getColumnIndexOrThrow(AppsTable.COLUMN_DESCRIPTION));
+        int v = name.lastIndexOf('v');
+        String expectedPkg = "com.stress." + name.substring(0, name.indexOf('s'))
+            + "." + name.substring(name.indexOf('s'), v);
+        if (!desc.equals(name + " description") || !pkg.equals(expectedPkg)) {
+            violation("Torn row: " + name + ", " + pkg + ", " + desc);
+        }
+    }
+
+    private abstract class Worker extends Thread {
+        final Random mRandom;
+        final HashMap<String, OpStats> mStats = new HashMap<String, OpStats>();
+
+        Worker(String name, int seed) {
+            super(name);
+            mRandom = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (System.currentTimeMillis() < mDeadline) {
+                    step();
+                }
+            } catch (Throwable t) {
+                violation(getName() + " failed: " + t);
+                Log.e(TAG, getName() + " failed", t);
+            }
+        }
+
+        abstract void step();
+
+        void record(String op, long startNanos) {
+            long nanos = System.nanoTime() - startNanos;
+            OpStats stats = mStats.get(op);
+            if (stats == null) {
+                stats = new OpStats(op);
+                mStats.put(op, stats);
+            }
+            stats.record(nanos);
+        }
+    }
+
+    private class Writer extends Worker {
+        final int mWriter;
+        // ids and versions of the rows this writer owns, by slot
+        final long[] mIds = new long[mSlotsPerWriter];
+        final int[] mVersions = new int[mSlotsPerWriter];
+        // launches this writer recorded, by shared row
+        final long[] mLaunches = new long[SHARED_ROWS];
+
+        Writer(int writer) {
+            super("writer" + writer, 1000 + writer);
+            mWriter = writer;
+        }
+
+        ContentValues values(int slot, int version) {
+            return rowValues(mWriter, slot, version);
+        }
+
+        @Override
+        void step() {
+            if (mRandom.nextInt(4) == 0) {
+                sharedStep();
+                return;
+            }
+            int slot = mRandom.nextInt(mSlotsPerWriter);
+            long start = System.nanoTime();
+            if (mIds[slot] == 0) {
+                mVersions[slot] = 1;
+                Uri uri = mResolver.insert(HostedApplicationsProvider.CONTENT_URI,
+                    values(slot, 1));
+                mIds[slot] = ContentUris.parseId(uri);
+                record("insert", start);
+            } else if (mRandom.nextInt(10) == 0) {
+                int rows = mResolver.delete(ContentUris.withAppendedId(
+                    HostedApplicationsProvider.CONTENT_URI, mIds[slot]), null, null);
+                record("delete", start);
+                if (rows != 1) {
+                    violation("Deleted " + rows + " rows for " + token(mWriter, slot,
+                        mVersions[slot]));
+                }
+                mIds[slot] = 0;
+            } else {
+                mVersions[slot]++;
+                int rows = mResolver.update(ContentUris.withAppendedId(
+                    HostedApplicationsProvider.CONTENT_URI, mIds[slot]),
+                    values(slot, mVersions[slot]), null, null);
+                record("update", start);
+                if (rows != 1) {
+                    violation("Updated " + rows + " rows for " + token(mWriter, slot,
+                        mVersions[slot]));
+                }
+            }
+            mWrites.incrementAndGet();
+        }
+
+        // Renames a shared row or records a launch of it, racing the other writers
+        // and the launch count flushes, which also write the shared rows.
+        void sharedStep() {
+            int row = mRandom.nextInt(SHARED_ROWS);
+            int op = mRandom.nextInt(20);
+            long start = System.nanoTime();
+            if (op == 0) {
+                mProvider.flushLaunchCountsForTest();
+                record("flush", start);
+            } else if (op < 5) {
+                int rows = mResolver.update(ContentUris.withAppendedId(
+                    HostedApplicationsProvider.CONTENT_URI, mSharedIds[row]),
+                    rowValues(mWriters, row, mRandom.nextInt(1000)), null, null);
+                record("shared", start);
+                if (rows != 1) {
+                    violation("Updated " + rows + " rows for shared row " + row);
+                }
+                mWrites.incrementAndGet();
+            } else {
+                mResolver.call(HostedApplicationsProvider.CONTENT_URI,
+                    HostedApplicationsProvider.METHOD_RECORD_LAUNCH,
+                    String.valueOf(mSharedIds[row]), null);
+                record("launch", start);
+                mLaunches[row]++;
+            }
+        }
+
+        void verify() {
+            Cursor cursor = mResolver.query(HostedApplicationsProvider.CONTENT_URI, null,
+                AppsTable.COLUMN_PACKAGE + " LIKE ?",
+                new String[] { "com.stress.w" + mWriter + ".s%" }, null);
+            try {
+                HashMap<Long, String> found = new HashMap<Long, String>();
+                while (cursor.moveToNext()) {
+                    found.put(cursor.getLong(cursor.getColumnIndexOrThrow(AppsTable.COLUMN_ID)),
+                        cursor.getString(cursor.getColumnIndexOrThrow(AppsTable.COLUMN_NAME)));
+                }
+                for (int slot = 0; slot < mSlotsPerWriter; slot++) {
+                    if (mIds[slot] == 0) {
+                        continue;
+                    }
+                    String expected = token(mWriter, slot, mVersions[slot]);
+                    String actual = found.remove(mIds[slot]);
+                    if (!expected.equals(actual)) {
+                        violation("Lost update: expected " + expected + ", found " + actual);
+                    }
+                }
+                for (Map.Entry<Long, String> extra : found.entrySet()) {
+                    violation("Row not deleted: " + extra.getKey() + " " + extra.getValue());
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private class Reader extends Worker {
+        Reader(int reader) {
+            super("reader" + reader, 2000 + reader);
+        }
+
+        @Override
+        void step() {
+            int op = mRandom.nextInt(10);
+            long start = System.nanoTime();
+            if (op < 2) {
+                // full table scan, as a sync or export would do
+                Cursor cursor = mResolver.query(HostedApplicationsProvider.CONTENT_URI,
+                    null, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        checkRow(cursor);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                record("scan", start);
+            } else if (op < 6) {
+                // a single app by package, as the launcher does before a launch
+                String pkg = packageName(mRandom.nextInt(mWriters),
+                    mRandom.nextInt(mSlotsPerWriter));
+                Cursor cursor = mResolver.query(HostedApplicationsProvider.CONTENT_URI,
+                    null, AppsTable.COLUMN_PACKAGE + " = ?", new String[] { pkg }, null);
+                try {
+                    if (cursor.getCount() > 1) {
+                        violation(cursor.getCount() + " rows for " + pkg);
+                    }
+                    while (cursor.moveToNext()) {
+                        checkRow(cursor);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                record("lookup", start);
+            } else if (op < 8) {
+                Cursor cursor = mResolver.query(HostedApplicationsProvider.CONTENT_URI,
+                    null, AppsTable.COLUMN_VENDOR + " = ?",
+                    new String[] { "vendor" + mRandom.nextInt(4) },
+                    AppsTable.COLUMN_NAME + " ASC");
+                try {
+                    while (cursor.moveToNext()) {
+                        checkRow(cursor);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                record("vendor", start);
+            } else {
+                Uri uri = Uri.withAppendedPath(HostedApplicationsProvider.SUGGEST_URI,
+                    "w" + mRandom.nextInt(mWriters) + "s" + mRandom.nextInt(4));
+                Cursor cursor = mResolver.query(uri, null, null, null, null);
+                cursor.close();
+                record("suggest", start);
+            }
+        }
+    }
+}
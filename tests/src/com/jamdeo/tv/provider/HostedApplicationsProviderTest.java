@@ -16,14 +16,21 @@
 
 package com.jamdeo.tv.provider;
 
+import android.app.SearchManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.DatabaseUtils;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.BaseColumns;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 import android.util.Log;
@@ -50,6 +57,7 @@ import java.util.GregorianCalendar;
  */
 public class HostedApplicationsProviderTest extends ProviderTestCase2<HostedApplicationsProvider> {
     private static final String TAG = "HostedApplicationsProviderTest";
+    private static final String AUTHORITY = "com.jamdeo.tv.provider.hostedapps";
     // A URI that the provider does not offer, for testing error handling.
     private static final Uri INVALID_URI =
         Uri.withAppendedPath(HostedApplicationsProvider.CONTENT_URI, "invalid");
@@ -57,7 +65,31 @@ public class HostedApplicationsProviderTest extends ProviderTestCase2<HostedAppl
     // Contains a reference to the mocked content resolver for the provider under test.
     private MockContentResolver mMockResolver;
 
-    // Contains an SQLite database, used as test data
+    // The provider under test, attached to a context that answers permission checks.
+    private HostedApplicationsProvider mProvider;
+
+    // Answers the provider's permission checks, which the isolated context cannot, and
+    // remembers the last permission checked.
+    private static class PermissionContext extends ContextWrapper {
+        private final boolean mGranted;
+        String mChecked;
+
+        PermissionContext(Context base, boolean granted) {
+            super(base);
+            mGranted = granted;
+        }
+
+        @Override
+        public void enforceCallingOrSelfPermission(String permission, String message) {
+            mChecked = permission;
+            if (!mGranted) {
+                throw new SecurityException(message);
+            }
+        }
+    }
+
+    // Contains an SQLite database, used as test data. Null when the provider runs on
+    // another storage engine.
     private SQLiteDatabase mDb;
 
     // Contains the test data, as an array of AppInfo instances.
@@ -75,6 +107,10 @@ public class HostedApplicationsProviderTest extends ProviderTestCase2<HostedAppl
 
     private final static String TEST_PKG_NAME = "com.hisense.app";
 
+    // a calling UID other than the test's, and how long testAdmission lets a call wait
+    private static final int SYNC_UID = 10002;
+    private static final long ADMISSION_WAIT_MS = 200;
+
     // A utility for converting data to a ContentValues map.
     private static class AppInfo {
         String name;
@@ -108,7 +144,24 @@ public class HostedApplicationsProviderTest extends ProviderTestCase2<HostedAppl
      * authority name of the provider.
      */
     public HostedApplicationsProviderTest() {
-        super(HostedApplicationsProvider.class, "com.jamdeo.tv.provider.hostedapps");
+        super(HostedApplicationsProvider.class, AUTHORITY);
+    }
+
+    /*
+     * Returns the provider under test, which replaces the one ProviderTestCase2 created.
+     */
+    @Override
+    public HostedApplicationsProvider getProvider() {
+        return mProvider;
+    }
+
+    /*
+     * Returns the storage engine to run the provider on, or null to use the engine the
+     * provider is configured with. Subclasses override this to run the same tests
+     * against another engine.
+     */
+    protected AppsStorage createStorage() {
+        return null;
     }
 
     /*
@@ -123,12 +176,25 @@ public class HostedApplicationsProviderTest extends ProviderTestCase2<HostedAppl
         // Gets the resolver for this test.
         mMockResolver = getMockContentResolver();
 
+        // Replaces the provider created in super.setUp() with one that holds the
+        // provider's permission, as call() checks it.
+        mProvider = new HostedApplicationsProvider();
+        mProvider.attachInfo(new PermissionContext(getMockContext(), true), null);
+        mMockResolver.addProvider(AUTHORITY, mProvider);
+
+        // Switches the provider to the storage engine under test, if it is not the default.
+        AppsStorage storage = createStorage();
+        if (storage != null) {
+            getProvider().setStorageForTest(storage);
+        }
+
         /*
          * Gets a handle to the database underlying the provider. Gets the provider instance
          * created in super.setUp(), gets the DatabaseOpenHelper for the provider, and gets
          * a database object from the helper.
          */
-        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+        AppsDatabaseHelper helper = getProvider().getOpenHelperForTest();
+        mDb = helper != null ? helper.getWritableDatabase() : null;
     }
 
     /*
@@ -142,8 +208,8 @@ public class HostedApplicationsProviderTest extends ProviderTestCase2<HostedAppl
 
     /*
      * Sets up test data.
-     * The test data is in an SQL database. It is created in setUp() without any data,
-     * and populated in insertData if necessary.
+     * The test data is in the provider's storage engine. It is created in setUp() without
+     * any data, and populated in insertData if necessary.
      */
     private void insertData() {
         // Creates an instance of the ContentValues map type expected by database insertions
@@ -151,10 +217,8 @@ public class HostedApplicationsProviderTest extends ProviderTestCase2<HostedAppl
 
         // Sets up test data
         for (int index = 0; index < TEST_APPS.length; index++) {
-            // Adds a record to the database.
-            mDb.insertOrThrow(
-                AppsTable.TABLE_NAME,             // the table name for the insert
-                null,      // column set to null if empty values map
+            // Adds a record to the storage engine, bypassing the provider.
+            getProvider().getStorageForTest().insert(
                 TEST_APPS[index].getContentValues()  // the values map to insert
             );
         }
@@ -289,6 +353,18 @@ public class HostedApplicationsProviderTest extends ProviderTestCase2<HostedAppl
         // that the number of arguments tested is exactly the same as the number of rows returned.
         assertEquals(SELECTION_ARGS.length, index);
 
+        // Query subtest 5
+        // LIKE patterns with many wildcards match as in SQLite, and return quickly even
+        // when they cannot match.
+        final String LIKE_SELECTION = AppsTable.COLUMN_DESCRIPTION + " LIKE ?";
+        projectionCursor = mMockResolver.query(HostedApplicationsProvider.CONTENT_URI, null,
+            LIKE_SELECTION, new String[] { "%%t%I%%s%_PP%5" }, null);
+        assertEquals(1, projectionCursor.getCount());
+        projectionCursor.close();
+        projectionCursor = mMockResolver.query(HostedApplicationsProvider.CONTENT_URI, null,
+            LIKE_SELECTION, new String[] { "%a%a%a%a%a%a%a%a%a%a%a%a%a%a%a%a%" }, null);
+        assertEquals(0, projectionCursor.getCount());
+        projectionCursor.close();
     }
 
     /*
@@ -562,6 +638,461 @@ public class HostedApplicationsProviderTest extends ProviderTestCase2<HostedAppl
         int nameIndex = cursor.getColumnIndex(AppsTable.COLUMN_NAME);
         cursor.moveToFirst();
         assertEquals(UPDATED_VALUE, cursor.getString(nameIndex));
+
+        // Subtest 3.
+        // Setting one _id on several rows fails and changes none of them.
+        values = new ContentValues();
+        values.put(AppsTable.COLUMN_ID, 1000);
+        try {
+            mMockResolver.update(HostedApplicationsProvider.CONTENT_URI, values, null, null);
+            fail("Expected the update to fail on the duplicate _id");
+        } catch (SQLException e) {
+            // succeeded, so do nothing.
+        }
+        cursor = mMockResolver.query(HostedApplicationsProvider.CONTENT_URI, null,
+            AppsTable.COLUMN_PACKAGE + " LIKE ?", new String[] { TEST_PKG_NAME + "%" }, null);
+        assertEquals(TEST_APPS.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that vendors are stored once in their own table while the provider keeps
+     * reading, filtering and writing the vendor column as text.
+     */
+    public void testVendors() {
+        // Selection on the vendor column, which lives in the joined vendors table.
+        final String VENDOR_SELECTION = AppsTable.COLUMN_VENDOR + " = " + "?";
+
+        // Inserts the test data, which all share a single vendor.
+        insertData();
+
+        // Subtest 1.
+        // Every app shares one row in the vendors table.
+        assertVendorCount(1);
+
+        // Subtest 2.
+        // Inserting an app with a new vendor adds a vendor row, and filtering on the
+        // vendor name returns only that app.
+        AppInfo ai = new AppInfo("Other", "com.other.app", "Other app", "other");
+        mMockResolver.insert(HostedApplicationsProvider.CONTENT_URI, ai.getContentValues());
+        assertVendorCount(2);
+
+        Cursor cursor = mMockResolver.query(
+            HostedApplicationsProvider.CONTENT_URI,
+            null,
+            VENDOR_SELECTION,
+            new String[] { "other" },
+            null
+        );
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ai.pkg, cursor.getString(cursor.getColumnIndex(AppsTable.COLUMN_PACKAGE)));
+        assertEquals(ai.vendor, cursor.getString(cursor.getColumnIndex(AppsTable.COLUMN_VENDOR)));
+
+        // Subtest 3.
+        // Updates and deletes can select on the vendor name too. Moving the app back to the
+        // first vendor leaves "other" unused, so it is removed from the vendors table.
+        ContentValues values = new ContentValues();
+        values.put(AppsTable.COLUMN_VENDOR, "hisense");
+        int rowsUpdated = mMockResolver.update(
+            HostedApplicationsProvider.CONTENT_URI,
+            values,
+            VENDOR_SELECTION,
+            new String[] { "other" }
+        );
+        assertEquals(1, rowsUpdated);
+        assertVendorCount(1);
+
+        int rowsDeleted = mMockResolver.delete(
+            HostedApplicationsProvider.CONTENT_URI,
+            VENDOR_SELECTION,
+            new String[] { "hisense" }
+        );
+        assertEquals(TEST_APPS.length + 1, rowsDeleted);
+        assertVendorCount(0);
+
+        // Subtest 4.
+        // A filter on the vendor name looks the vendor up and then uses the index on
+        // the apps table's vendor id, instead of scanning every app.
+        if (mDb != null) {
+            assertTrue(queryPlan(mDb, "SELECT * FROM " + AppsTable.JOINED_TABLES
+                + " WHERE " + VENDOR_SELECTION).contains("apps_vendor_index"));
+        }
+    }
+
+    /*
+     * Returns the steps SQLite plans for the given statement, one per line.
+     */
+    private static String queryPlan(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, new String[] { "x" });
+        try {
+            StringBuilder plan = new StringBuilder();
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+            }
+            Log.d(TAG, "plan for " + sql + ":\n" + plan);
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests upgrading a version 1 database, which kept the vendor as text in the apps
+     * table, to the current schema.
+     */
+    public void testUpgradeFromVersion1() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE apps (_id integer primary key autoincrement, "
+                + "name text not null, package text not null, vendor text not null, "
+                + "description text not null)");
+            for (int i = 0; i < TEST_APPS.length; i++) {
+                db.execSQL("INSERT INTO apps (_id, name, package, vendor, description) "
+                    + "VALUES (?, ?, ?, ?, ?)", new Object[] { 100 + i, TEST_APPS[i].name,
+                    TEST_APPS[i].pkg, i % 2 == 0 ? "hisense" : "other", TEST_APPS[i].desc });
+            }
+
+            new AppsDatabaseHelper(getMockContext()).onUpgrade(db, 1, 4);
+
+            // Subtest 1.
+            // Every app keeps its _id and columns, and each vendor is stored once.
+            assertEquals(2, DatabaseUtils.queryNumEntries(db, VendorsTable.TABLE_NAME));
+            Cursor cursor = db.query(AppsTable.JOINED_TABLES, AppsTable.PUBLIC_COLUMNS,
+                null, null, null, null, AppsTable.COLUMN_ID);
+            try {
+                assertEquals(TEST_APPS.length, cursor.getCount());
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    assertEquals(100 + i, cursor.getLong(0));
+                    assertEquals(TEST_APPS[i].name, cursor.getString(1));
+                    assertEquals(TEST_APPS[i].pkg, cursor.getString(2));
+                    assertEquals(i % 2 == 0 ? "hisense" : "other", cursor.getString(3));
+                    assertEquals(TEST_APPS[i].desc, cursor.getString(4));
+                    assertEquals(0, cursor.getLong(5));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // Subtest 2.
+            // New apps get an _id after the old ones and can use an existing vendor.
+            long id = AppsTable.insert(db, TEST_APPS[0].getContentValues());
+            assertEquals(100 + TEST_APPS.length, id);
+            assertEquals(2, DatabaseUtils.queryNumEntries(db, VendorsTable.TABLE_NAME));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Asserts the number of rows in the vendors table. Only the SQLite engine has one.
+     */
+    private void assertVendorCount(long count) {
+        if (mDb != null) {
+            assertEquals(count, DatabaseUtils.queryNumEntries(mDb, VendorsTable.TABLE_NAME));
+        }
+    }
+
+    /*
+     * Tests type-ahead suggestions, which are served from the provider's in-memory name
+     * trie and must follow inserts, updates and deletes made through the provider.
+     */
+    public void testSuggestions() {
+        // Inserts the test data before the first suggestion query, so the trie is built
+        // from the database.
+        insertData();
+
+        // Subtest 1.
+        // The query text is the last path segment and matching ignores case.
+        Uri suggestUri = Uri.withAppendedPath(HostedApplicationsProvider.SUGGEST_URI, "app");
+        assertEquals(SearchManager.SUGGEST_MIME_TYPE, mMockResolver.getType(suggestUri));
+        Cursor cursor = mMockResolver.query(suggestUri, null, null, null, null);
+        assertEquals(TEST_APPS.length, cursor.getCount());
+        int textIndex = cursor.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_1);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("App0", cursor.getString(textIndex));
+
+        // Subtest 2.
+        // The limit parameter caps the number of suggestions.
+        Uri limitedUri = suggestUri.buildUpon()
+            .appendQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT, "3").build();
+        cursor = mMockResolver.query(limitedUri, null, null, null, null);
+        assertEquals(3, cursor.getCount());
+
+        // A negative limit is rejected.
+        limitedUri = suggestUri.buildUpon()
+            .appendQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT, "-1").build();
+        try {
+            mMockResolver.query(limitedUri, null, null, null, null);
+            fail("Expected a negative limit to be rejected");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+
+        // Subtest 3.
+        // Inserts, renames and deletes through the provider are seen by later suggestions.
+        AppInfo ai = new AppInfo("Browser", "com.hisense.browser", "Web browser", "hisense");
+        Uri rowUri = mMockResolver.insert(HostedApplicationsProvider.CONTENT_URI,
+            ai.getContentValues());
+        long appId = ContentUris.parseId(rowUri);
+        Uri browserUri = Uri.withAppendedPath(HostedApplicationsProvider.SUGGEST_URI, "BRO");
+        cursor = mMockResolver.query(browserUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(appId, cursor.getLong(cursor.getColumnIndex(BaseColumns._ID)));
+
+        ContentValues values = new ContentValues();
+        values.put(AppsTable.COLUMN_NAME, "Web");
+        mMockResolver.update(ContentUris.withAppendedId(HostedApplicationsProvider.CONTENT_URI,
+            appId), values, null, null);
+        assertEquals(0, mMockResolver.query(browserUri, null, null, null, null).getCount());
+        Uri webUri = Uri.withAppendedPath(HostedApplicationsProvider.SUGGEST_URI, "we");
+        assertEquals(1, mMockResolver.query(webUri, null, null, null, null).getCount());
+
+        // Subtest 4.
+        // Changing an app's _id moves its suggestion to the new _id.
+        values = new ContentValues();
+        values.put(AppsTable.COLUMN_ID, appId + 100);
+        mMockResolver.update(ContentUris.withAppendedId(HostedApplicationsProvider.CONTENT_URI,
+            appId), values, null, null);
+        cursor = mMockResolver.query(webUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(appId + 100, cursor.getLong(cursor.getColumnIndex(BaseColumns._ID)));
+
+        // Subtest 5.
+        // Deleting every app leaves no suggestions.
+        mMockResolver.delete(HostedApplicationsProvider.CONTENT_URI, null, null);
+        assertEquals(0, mMockResolver.query(suggestUri, null, null, null, null).getCount());
+        assertEquals(0, mMockResolver.query(webUri, null, null, null, null).getCount());
+    }
+
+    /*
+     * Tests launch counting. Launches are recorded in memory, written in batches, and the
+     * most launched apps are served from the top URI.
+     */
+    public void testLaunchCounts() {
+        insertData();
+        long[] ids = new long[TEST_APPS.length];
+        Cursor cursor = mMockResolver.query(HostedApplicationsProvider.CONTENT_URI,
+            new String[] { AppsTable.COLUMN_ID }, null, null, AppsTable.COLUMN_ID + " ASC");
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+
+        // Subtest 1.
+        // Launches are only counted in memory until the next flush.
+        recordLaunches(ids[3], 5);
+        recordLaunches(ids[7], 3);
+        recordLaunches(ids[1], 1);
+        assertEquals(0, launchCount(ids[3]));
+        getProvider().flushLaunchCountsForTest();
+        assertEquals(5, launchCount(ids[3]));
+        assertEquals(3, launchCount(ids[7]));
+        assertEquals(0, launchCount(ids[0]));
+
+        // Subtest 2.
+        // The top URI returns the n most launched apps, most launched first.
+        assertEquals(HostedApplicationsProvider.CONTENT_TYPE,
+            mMockResolver.getType(HostedApplicationsProvider.TOP_URI));
+        assertTop(2, ids[3], ids[7]);
+        assertTop(3, ids[3], ids[7], ids[1]);
+
+        // Subtest 3.
+        // Later launches are added to the written counts, and launches of apps that
+        // were deleted in the meantime are dropped.
+        recordLaunches(ids[7], 4);
+        recordLaunches(ids[1], 10);
+        mMockResolver.delete(ContentUris.withAppendedId(HostedApplicationsProvider.CONTENT_URI,
+            ids[1]), null, null);
+        getProvider().flushLaunchCountsForTest();
+        assertTop(2, ids[7], ids[3]);
+        assertEquals(7, launchCount(ids[7]));
+
+        // Subtest 4.
+        // The launch count can be read through the public columns and the fast path.
+        for (HostedApp app : getProvider().getApps()) {
+            assertEquals(launchCount(app.getId()), app.getLaunchCount());
+        }
+
+        // Subtest 5.
+        // A bad _id is rejected.
+        try {
+            mMockResolver.call(HostedApplicationsProvider.CONTENT_URI,
+                HostedApplicationsProvider.METHOD_RECORD_LAUNCH, "app", null);
+            fail("Expected the launch to be rejected");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+
+        // Subtest 6.
+        // A caller without the provider's permission cannot record launches.
+        PermissionContext denied = new PermissionContext(getMockContext(), false);
+        HostedApplicationsProvider provider = new HostedApplicationsProvider();
+        provider.attachInfo(denied, null);
+        try {
+            provider.call(HostedApplicationsProvider.METHOD_RECORD_LAUNCH,
+                String.valueOf(ids[7]), null);
+            fail("Expected the launch to be refused");
+        } catch (SecurityException e) {
+            // succeeded, so do nothing.
+        }
+        assertEquals(HostedApplicationsProvider.PERMISSION_ACCESS_DATA, denied.mChecked);
+        provider.flushLaunchCountsForTest();
+        assertEquals(7, launchCount(ids[7]));
+    }
+
+    private void recordLaunches(long id, int launches) {
+        for (int i = 0; i < launches; i++) {
+            mMockResolver.call(HostedApplicationsProvider.CONTENT_URI,
+                HostedApplicationsProvider.METHOD_RECORD_LAUNCH, String.valueOf(id), null);
+        }
+    }
+
+    private long launchCount(long id) {
+        Cursor cursor = mMockResolver.query(
+            ContentUris.withAppendedId(HostedApplicationsProvider.CONTENT_URI, id),
+            new String[] { AppsTable.COLUMN_LAUNCH_COUNT }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertTop(int n, long... expectedIds) {
+        Uri topUri = HostedApplicationsProvider.TOP_URI.buildUpon()
+            .appendQueryParameter(HostedApplicationsProvider.TOP_PARAMETER_COUNT,
+                String.valueOf(n)).build();
+        Cursor cursor = mMockResolver.query(topUri, null, null, null, null);
+        try {
+            assertEquals(n, cursor.getCount());
+            int idIndex = cursor.getColumnIndex(AppsTable.COLUMN_ID);
+            for (long expectedId : expectedIds) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(expectedId, cursor.getLong(idIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests the admission control in front of the provider's calls. Batches and reads of
+     * every row wait for the bulk slot, unless they come from a foreground caller.
+     */
+    public void testAdmission() {
+        // Calls through the mock resolver run on this thread, so they come from this UID.
+        int uid = Process.myUid();
+        AdmissionController admission = new AdmissionController(4, 1, 2, 8, 8,
+            ADMISSION_WAIT_MS);
+        getProvider().setAdmissionControllerForTest(admission);
+
+        // Subtest 1.
+        // A batch is admitted once for all of its rows.
+        ContentValues[] values = new ContentValues[TEST_APPS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = TEST_APPS[i].getContentValues();
+        }
+        assertEquals(TEST_APPS.length,
+            mMockResolver.bulkInsert(HostedApplicationsProvider.CONTENT_URI, values));
+        assertEquals(1, getProvider().getAdmissionStatsForTest(uid).admitted);
+
+        AdmissionController.Ticket sync = admission.acquire(SYNC_UID, true);
+        try {
+            // Subtest 2.
+            // While another caller holds the bulk slot, a read of selected rows gets in,
+            // and a read of every row waits until it is rejected.
+            Cursor cursor = mMockResolver.query(HostedApplicationsProvider.CONTENT_URI, null,
+                AppsTable.COLUMN_PACKAGE + " = ?", new String[] { TEST_APPS[0].pkg }, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+            try {
+                mMockResolver.query(HostedApplicationsProvider.CONTENT_URI, null, null, null,
+                    null);
+                fail("Expected the read of every row to be rejected");
+            } catch (IllegalStateException e) {
+                // succeeded, so do nothing.
+            }
+            assertEquals(1, getProvider().getAdmissionStatsForTest(uid).rejected);
+
+            // Subtest 3.
+            // The same read from a foreground caller, such as the launcher, gets in.
+            getProvider().setForegroundCallerForTest(uid, true);
+            cursor = mMockResolver.query(HostedApplicationsProvider.CONTENT_URI, null, null,
+                null, null);
+            assertEquals(TEST_APPS.length, cursor.getCount());
+            cursor.close();
+        } finally {
+            admission.release(sync);
+        }
+
+        AdmissionController.CallerStats stats = getProvider().getAdmissionStatsForTest(uid);
+        assertEquals(3, stats.admitted);
+        assertEquals(1, stats.rejected);
+
+        // Subtest 4.
+        // The counters can be read through call(), also before API 18 brought dumpsys
+        // to providers.
+        Bundle result = mMockResolver.call(HostedApplicationsProvider.CONTENT_URI,
+            HostedApplicationsProvider.METHOD_GET_ADMISSION_STATS, null, null);
+        String text = result.getString(HostedApplicationsProvider.KEY_ADMISSION_STATS);
+        assertTrue(text, text.contains("uid " + uid + ": admitted=3 rejected=1"));
+    }
+
+    /*
+     * Tests database maintenance. Deleting many rows leaves free pages in the file, and a
+     * maintenance run should hand them back through incremental vacuum.
+     */
+    public void testMaintenance() {
+        // Only the SQLite engine has a database file to maintain.
+        if (mDb == null) {
+            return;
+        }
+
+        AppsDatabaseMaintenance maintenance =
+            getProvider().getOpenHelperForTest().getMaintenance();
+
+        // Subtest 1.
+        // The first maintenance run turns on incremental auto vacuum (2), which cannot
+        // be set on a new file once Android has created android_metadata in it.
+        maintenance.runMaintenance();
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null));
+
+        // Subtest 2.
+        // Fills the table with rows large enough to span many pages, then deletes them.
+        StringBuilder desc = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            desc.append("This is a long description. ");
+        }
+        for (int i = 0; i < 500; i++) {
+            AppInfo ai = new AppInfo("App" + i, TEST_PKG_NAME + "." + i, desc.toString(),
+                "hisense");
+            AppsTable.insert(mDb, ai.getContentValues());
+        }
+        mMockResolver.delete(HostedApplicationsProvider.CONTENT_URI, null, null);
+        AppsDatabaseMaintenance.Report before = maintenance.measure(mDb);
+        assertTrue(before.freePages > 0);
+
+        // Subtest 3.
+        // A maintenance run returns the free pages, so the file shrinks.
+        AppsDatabaseMaintenance.Report after = maintenance.runMaintenance();
+        Log.d(TAG, "maintenance before: " + before + ", after: " + after);
+        assertTrue(after.freePages < before.freePages);
+        assertTrue(after.pageCount < before.pageCount);
+
+        // Subtest 4.
+        // A file without auto vacuum, as created before version 3, is not rewritten by
+        // the client that opens it, but by the next maintenance run.
+        mDb.execSQL("PRAGMA auto_vacuum = NONE");
+        mDb.execSQL("VACUUM");
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null));
+        getProvider().getOpenHelperForTest().onOpen(mDb);
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null));
+        maintenance.runMaintenance();
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null));
     }
 
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jamdeo.tv.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.io.File;
+
+/**
+ * Runs the HostedApplicationsProvider tests against the in-memory storage engine, and
+ * tests the engine's snapshot file.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.jamdeo.tv.provider.InMemoryHostedApplicationsProviderTest \
+ *         -w com.jamdeo.tv.provider.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+public class InMemoryHostedApplicationsProviderTest extends HostedApplicationsProviderTest {
+
+    /*
+     * Runs the provider on an in-memory engine without a snapshot file.
+     */
+    @Override
+    protected AppsStorage createStorage() {
+        return new InMemoryAppsStorage(null);
+    }
+
+    /*
+     * Tests that apps saved to a snapshot are there when a new engine loads it.
+     */
+    public void testSnapshot() {
+        File file = new File(getContext().getCacheDir(), "test.snapshot");
+        file.delete();
+
+        // Saves two apps, one of them with a name that needs more than one byte per char.
+        InMemoryAppsStorage storage = new InMemoryAppsStorage(file);
+        ContentValues values = new ContentValues();
+        values.put(AppsTable.COLUMN_NAME, "App0");
+        values.put(AppsTable.COLUMN_PACKAGE, "com.hisense.app.0");
+        values.put(AppsTable.COLUMN_VENDOR, "hisense");
+        values.put(AppsTable.COLUMN_DESCRIPTION, "This is app 0");
+        long id0 = storage.insert(values);
+        values.put(AppsTable.COLUMN_NAME, "\u5e94\u75281");
+        values.put(AppsTable.COLUMN_PACKAGE, "com.hisense.app.1");
+        long id1 = storage.insert(values);
+        storage.addLaunchCounts(new long[] { id1 }, new long[] { 3 });
+        storage.saveSnapshot();
+
+        // Loads the snapshot into a new engine and checks the apps and the next _id.
+        InMemoryAppsStorage loaded = new InMemoryAppsStorage(file);
+        Cursor cursor = loaded.query(AppsStorage.ALL_ROWS, null, null, null,
+            AppsTable.COLUMN_ID + " ASC");
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(id0, cursor.getLong(cursor.getColumnIndex(AppsTable.COLUMN_ID)));
+        assertTrue(cursor.moveToNext());
+        assertEquals(id1, cursor.getLong(cursor.getColumnIndex(AppsTable.COLUMN_ID)));
+        assertEquals("\u5e94\u75281",
+            cursor.getString(cursor.getColumnIndex(AppsTable.COLUMN_NAME)));
+        assertEquals(3, cursor.getLong(cursor.getColumnIndex(AppsTable.COLUMN_LAUNCH_COUNT)));
+
+        values.put(AppsTable.COLUMN_PACKAGE, "com.hisense.app.2");
+        assertTrue(loaded.insert(values) > id1);
+
+        file.delete();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jamdeo.tv.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Tests the same-process fast path to the hosted apps, and compares its cost for a full
+ * table iteration with query().
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.jamdeo.tv.provider.LocalAppsCatalogTest \
+ *         -w com.jamdeo.tv.provider.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+public class LocalAppsCatalogTest extends ProviderTestCase2<HostedApplicationsProvider> {
+    private static final String TAG = "LocalAppsCatalogTest";
+
+    // Size of the catalog and number of full iterations for the benchmark.
+    private static final int BENCHMARK_APPS = 2000;
+    private static final int BENCHMARK_ROUNDS = 20;
+
+    // Contains a reference to the mocked content resolver for the provider under test.
+    private MockContentResolver mMockResolver;
+
+    public LocalAppsCatalogTest() {
+        super(HostedApplicationsProvider.class, "com.jamdeo.tv.provider.hostedapps");
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+    }
+
+    private static ContentValues appValues(int index) {
+        ContentValues v = new ContentValues();
+        v.put(AppsTable.COLUMN_NAME, "App" + index);
+        v.put(AppsTable.COLUMN_PACKAGE, "com.hisense.app." + index);
+        v.put(AppsTable.COLUMN_VENDOR, "vendor" + (index % 20));
+        v.put(AppsTable.COLUMN_DESCRIPTION, "This is app " + index);
+        return v;
+    }
+
+    /*
+     * Tests that the fast path returns the same apps as query(), and that a list once
+     * returned is not changed by later writes.
+     */
+    public void testMatchesQuery() {
+        for (int i = 0; i < 10; i++) {
+            mMockResolver.insert(HostedApplicationsProvider.CONTENT_URI, appValues(i));
+        }
+
+        // Subtest 1.
+        // The provider runs in this process, so the fast path is available and returns
+        // the rows query() returns, in _id order.
+        List<HostedApp> apps = LocalAppsCatalog.getApps(getMockContext());
+        assertNotNull(apps);
+        Cursor cursor = mMockResolver.query(HostedApplicationsProvider.CONTENT_URI, null,
+            null, null, AppsTable.COLUMN_ID + " ASC");
+        assertEquals(cursor.getCount(), apps.size());
+        for (HostedApp app : apps) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(cursor.getLong(cursor.getColumnIndex(AppsTable.COLUMN_ID)),
+                app.getId());
+            assertEquals(cursor.getString(cursor.getColumnIndex(AppsTable.COLUMN_NAME)),
+                app.getName());
+            assertEquals(cursor.getString(cursor.getColumnIndex(AppsTable.COLUMN_PACKAGE)),
+                app.getPackage());
+            assertEquals(cursor.getString(cursor.getColumnIndex(AppsTable.COLUMN_VENDOR)),
+                app.getVendor());
+            assertEquals(
+                cursor.getString(cursor.getColumnIndex(AppsTable.COLUMN_DESCRIPTION)),
+                app.getDescription());
+        }
+        cursor.close();
+
+        // Subtest 2.
+        // The list cannot be modified by callers.
+        try {
+            apps.remove(0);
+            fail("Expected the list to be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+            // succeeded, so do nothing.
+        }
+
+        // Subtest 3.
+        // A write leaves the earlier list as it was and shows up in the next one. A
+        // launch count flush only replaces the rows it counted.
+        List<HostedApp> before = LocalAppsCatalog.getApps(getMockContext());
+        long firstId = before.get(0).getId();
+        getProvider().getStorageForTest().addLaunchCounts(new long[] { firstId },
+            new long[] { 3 });
+        List<HostedApp> after = LocalAppsCatalog.getApps(getMockContext());
+        assertEquals(0, before.get(0).getLaunchCount());
+        assertEquals(3, after.get(0).getLaunchCount());
+        assertEquals(before.get(1), after.get(1));
+
+        mMockResolver.delete(HostedApplicationsProvider.CONTENT_URI, null, null);
+        assertEquals(10, apps.size());
+        assertEquals(0, LocalAppsCatalog.getApps(getMockContext()).size());
+    }
+
+    /*
+     * Benchmarks a full table iteration reading every column, through query() and through
+     * the fast path, and the cost of getting the fast path's list after a write and after
+     * a launch count flush. The results are written to the log.
+     */
+    public void testFullIterationBenchmark() {
+        AppsStorage storage = getProvider().getStorageForTest();
+        for (int i = 0; i < BENCHMARK_APPS; i++) {
+            storage.insert(appValues(i));
+        }
+
+        // Warms up both paths, so the fast path measures its steady state.
+        assertEquals(BENCHMARK_APPS, iterateQuery());
+        assertEquals(BENCHMARK_APPS, iterateLocal());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            iterateQuery();
+        }
+        long queryNanos = (System.nanoTime() - start) / BENCHMARK_ROUNDS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            iterateLocal();
+        }
+        long localNanos = (System.nanoTime() - start) / BENCHMARK_ROUNDS;
+
+        // Each write makes the next call read the table again.
+        long rebuildNanos = 0;
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            values.put(AppsTable.COLUMN_DESCRIPTION, "Round " + i);
+            storage.update(1, values, null, null);
+            start = System.nanoTime();
+            LocalAppsCatalog.getApps(getMockContext());
+            rebuildNanos += System.nanoTime() - start;
+        }
+        rebuildNanos /= BENCHMARK_ROUNDS;
+
+        // A launch count flush only patches the list.
+        long flushNanos = 0;
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            storage.addLaunchCounts(new long[] { 1 + i }, new long[] { 1 });
+            start = System.nanoTime();
+            LocalAppsCatalog.getApps(getMockContext());
+            flushNanos += System.nanoTime() - start;
+        }
+        flushNanos /= BENCHMARK_ROUNDS;
+
+        Log.i(TAG, "Full iteration of " + BENCHMARK_APPS + " apps: query() "
+            + queryNanos / 1000 + "us, LocalAppsCatalog " + localNanos / 1000 + "us");
+        Log.i(TAG, "LocalAppsCatalog list after a write " + rebuildNanos / 1000
+            + "us, after a launch count flush " + flushNanos / 1000 + "us");
+    }
+
+    private int iterateQuery() {
+        int rows = 0;
+        Cursor cursor = mMockResolver.query(HostedApplicationsProvider.CONTENT_URI, null,
+            null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getString(1);
+                cursor.getString(2);
+                cursor.getString(3);
+                cursor.getString(4);
+                rows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private int iterateLocal() {
+        int rows = 0;
+        for (HostedApp app : LocalAppsCatalog.getApps(getMockContext())) {
+            app.getId();
+            app.getName();
+            app.getPackage();
+            app.getVendor();
+            app.getDescription();
+            rows++;
+        }
+        return rows;
+    }
+}